@@ -0,0 +1,25 @@
+package rocks.postgres.jmh;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+ * Runs the benchmarks selected by the usual JMH command line at 1, 2, 4, ...
+ * threads up to -Djmh.maxThreads (the number of CPUs by default), so
+ * contention in the shared parts of the harness shows up as a trend.
+ */
+public class BenchmarkMain {
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        int maxThreads = Integer.getInteger("jmh.maxThreads", Runtime.getRuntime().availableProcessors());
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            Options options = new OptionsBuilder()
+                    .parent(commandLine)
+                    .threads(threads)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package rocks.postgres.jmh;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import rocks.postgres.util.KeyDistribution;
+import rocks.postgres.util.LatencyHistogram;
+
+/*
+ * What the harness does around every transaction: drawing keys, recording
+ * the latency in the client's histogram and bumping the shared counters.
+ * The counters are shared by all benchmark threads, like they are shared by
+ * all clients, so running at several thread counts shows their contention.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HarnessBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class SharedState {
+        @Param({"uniform", "gaussian:5", "exponential:5", "zipfian:1.1"})
+        String distribution;
+
+        KeyDistribution accounts;
+        final LongAdder transactionCount = new LongAdder();
+        final LongAdder latencySum = new LongAdder();
+        final DoubleAdder latencySumSquares = new DoubleAdder();
+
+        @Setup
+        public void setup() {
+            // scale 1000
+            accounts = KeyDistribution.create(distribution, 100000L * 1000);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ClientState {
+        final SplittableRandom random = new SplittableRandom();
+        final LatencyHistogram histogram = new LatencyHistogram();
+    }
+
+    @Benchmark
+    public long randomKey(SharedState shared, ClientState client) {
+        return shared.accounts.next(client.random);
+    }
+
+    @Benchmark
+    public void recordLatency(ClientState client) {
+        client.histogram.recordValue(client.random.nextLong(100, 100000));
+    }
+
+    @Benchmark
+    public void countTransaction(SharedState shared, ClientState client) {
+        long latency = client.random.nextLong(100, 100000);
+        shared.latencySum.add(latency);
+        shared.latencySumSquares.add((double) latency * latency);
+        shared.transactionCount.increment();
+    }
+}
@@ -0,0 +1,79 @@
+package rocks.postgres.jmh;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import rocks.postgres.util.QueryUtils;
+
+/*
+ * Client side cost of building and issuing the TPC-B statements, against a
+ * stub connection so no database is involved.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class QueryUtilsBenchmark {
+    @Param({"false", "true"})
+    boolean prepared;
+
+    QueryUtils queryUtils;
+    Connection connection;
+    SplittableRandom random;
+
+    @Setup
+    public void setup() {
+        queryUtils = new QueryUtils(false, prepared, false);
+        connection = StubJdbc.connection();
+        random = new SplittableRandom(42);
+    }
+
+    @Benchmark
+    public String prepareSelectQuery() {
+        return queryUtils.prepareSelectQuery(random.nextInt(100000));
+    }
+
+    @Benchmark
+    public String prepareInsertHistoryQuery() {
+        return queryUtils.prepareInsertHistoryQuery(random.nextInt(10), random.nextInt(1), random.nextInt(100000), random.nextInt(-500, 501));
+    }
+
+    @Benchmark
+    public String prepareTpcbPipelineQuery() {
+        return queryUtils.prepareTpcbPipelineQuery(random.nextInt(100000), random.nextInt(1), random.nextInt(10), random.nextInt(-500, 501));
+    }
+
+    @Benchmark
+    public void executeTpcb(Blackhole blackhole) throws SQLException {
+        int aid = random.nextInt(100000);
+        int bid = random.nextInt(1);
+        int tid = random.nextInt(10);
+        int delta = random.nextInt(-500, 501);
+        blackhole.consume(queryUtils.executeUpdateAccounts(connection, delta, aid));
+        blackhole.consume(queryUtils.executeSelectQuery(connection, aid));
+        blackhole.consume(queryUtils.executeUpdateTellersQuery(connection, delta, tid));
+        blackhole.consume(queryUtils.executeUpdateBranchesQuery(connection, delta, bid));
+        blackhole.consume(queryUtils.executeInsertHistory(connection, tid, bid, aid, delta));
+    }
+
+    @Benchmark
+    public int executeTpcbPipelined() throws SQLException {
+        return queryUtils.executeTpcbPipelined(connection, random.nextInt(100000), random.nextInt(1), random.nextInt(10), random.nextInt(-500, 501));
+    }
+}
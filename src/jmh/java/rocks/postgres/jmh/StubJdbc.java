@@ -0,0 +1,98 @@
+package rocks.postgres.jmh;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/*
+ * In-memory stand-ins for the JDBC objects QueryUtils talks to. Every update
+ * touches one row and every query returns a single row holding 0, so the
+ * benchmarks measure only what the harness itself does around the driver.
+ * The proxies add a small constant cost per call, which is fine for catching
+ * regressions.
+ */
+final class StubJdbc {
+    private StubJdbc() {
+    }
+
+    static Connection connection() {
+        return proxy(Connection.class, new InvocationHandler() {
+            boolean autoCommit = true;
+
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "prepareStatement":
+                        return statement(PreparedStatement.class);
+                    case "createStatement":
+                        return statement(Statement.class);
+                    case "getAutoCommit":
+                        return autoCommit;
+                    case "setAutoCommit":
+                        autoCommit = (Boolean) args[0];
+                        return null;
+                    default:
+                        return defaultValue(method.getReturnType());
+                }
+            }
+        });
+    }
+
+    private static <T extends Statement> T statement(Class<T> type) {
+        StubResultSet resultSet = new StubResultSet();
+        ResultSet rs = proxy(ResultSet.class, resultSet);
+        return proxy(type, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "executeUpdate":
+                    return 1;
+                case "executeQuery":
+                    resultSet.remaining = 1;
+                    return rs;
+                case "getUpdateCount":
+                    return -1;
+                case "unwrap":
+                    return proxy;
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    private static final class StubResultSet implements InvocationHandler {
+        int remaining;
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("next")) {
+                return remaining-- > 0;
+            }
+            return defaultValue(method.getReturnType());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(StubJdbc.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == double.class) {
+            return 0.0;
+        } else if (type == float.class) {
+            return 0.0f;
+        } else if (type == short.class) {
+            return (short) 0;
+        } else if (type == byte.class) {
+            return (byte) 0;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,114 @@
+package rocks.postgres;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Parameters;
+import rocks.postgres.util.ResultFile;
+import rocks.postgres.util.Statistics;
+
+/*
+ * Compares the result files of two or more runs against the first one.
+ * Throughput and average latency are compared with Welch's t-test over the
+ * per interval samples of each run, so a difference is only called
+ * significant when it stands out from the run's own interval to interval
+ * noise. Percentiles come from a single histogram per run and are shown as
+ * plain differences.
+ */
+@Command(name = "compare", description = "Compare result files written with --result-file against the first one.")
+public class Compare implements Callable<Integer> {
+	@Parameters(arity = "2..*", paramLabel = "FILE", description = "Result files (.json or .csv), the first is the baseline")
+	private List<Path> files = new ArrayList<>();
+
+	@Option(names = {"--alpha"}, description = "Significance level of the t-tests. Default is ${DEFAULT-VALUE}", defaultValue = "0.05")
+	private double alpha = 0.05;
+
+	@Option(names = {"--fail-on-regression"}, description = "Exit with status 2 when a run has significantly lower throughput or higher average latency than the baseline.", defaultValue = "false")
+	private boolean failOnRegression = false;
+
+	private static final String[][] PERCENTILES = {
+			{"latency.p50_ms", "latency p50"},
+			{"latency.p90_ms", "latency p90"},
+			{"latency.p99_ms", "latency p99"},
+			{"latency.p999_ms", "latency p99.9"},
+			{"latency.max_ms", "latency max"}
+	};
+
+	@Override
+	public Integer call() {
+		List<Map<String, Object>> results = new ArrayList<>();
+		for (Path file : files) {
+			try {
+				results.add(ResultFile.read(file));
+			} catch (Exception ex) {
+				System.err.println("Error reading " + file + ": " + ex.getMessage());
+				return 1;
+			}
+		}
+
+		Map<String, Object> baseline = results.get(0);
+		System.out.printf("Baseline %s: %.1f tps, latency avg %.3f ms, p99 %.3f ms, %d intervals%n", files.get(0),
+				ResultFile.number(baseline, "tps"), ResultFile.number(baseline, "latency.avg_ms"),
+				ResultFile.number(baseline, "latency.p99_ms"), ResultFile.numbers(baseline, "intervals.tps").length);
+
+		boolean regression = false;
+		for (int i = 1; i < results.size(); i++) {
+			Map<String, Object> result = results.get(i);
+			System.out.println();
+			System.out.println(files.get(i) + ":");
+			warnOnConfigDifferences(baseline, result);
+			int tps = compare("tps", "", baseline, result, "tps", "intervals.tps");
+			int latency = compare("latency avg", " ms", baseline, result, "latency.avg_ms", "intervals.latency_ms");
+			for (String[] percentile : PERCENTILES) {
+				compare(percentile[1], " ms", baseline, result, percentile[0], null);
+			}
+			System.out.printf("  %-14s %12.0f -> %.0f%n", "failed", ResultFile.number(baseline, "failed"), ResultFile.number(result, "failed"));
+			regression |= tps < 0 || latency > 0;
+		}
+		return failOnRegression && regression ? 2 : 0;
+	}
+
+	/*
+	 * Prints one metric, returns the sign of a significant difference
+	 * (0 when it is not significant or there are no samples to test).
+	 */
+	private int compare(String label, String unit, Map<String, Object> baseline, Map<String, Object> result, String key, String samplesKey) {
+		double before = ResultFile.number(baseline, key);
+		double after = ResultFile.number(result, key);
+		double change = 100.0 * (after - before) / before;
+		StringBuilder line = new StringBuilder(String.format("  %-14s %12.3f -> %.3f%s (%+.1f%%)", label, before, after, unit, change));
+		int sign = 0;
+		if (samplesKey != null) {
+			double p = Statistics.welchTTest(ResultFile.numbers(baseline, samplesKey), ResultFile.numbers(result, samplesKey));
+			if (Double.isNaN(p)) {
+				line.append("  not enough intervals to test");
+			} else {
+				line.append(String.format("  p=%.4f", p));
+				if (p < alpha) {
+					line.append("  significant");
+					sign = after > before ? 1 : -1;
+				}
+			}
+		}
+		System.out.println(line);
+		return sign;
+	}
+
+	private void warnOnConfigDifferences(Map<String, Object> baseline, Map<String, Object> result) {
+		for (Map.Entry<String, Object> entry : result.entrySet()) {
+			if (!entry.getKey().startsWith("config.")) {
+				continue;
+			}
+			Object before = baseline.get(entry.getKey());
+			String after = String.valueOf(entry.getValue());
+			if (!after.equals(String.valueOf(before))) {
+				System.out.println("  note: " + entry.getKey() + " differs: " + before + " -> " + after);
+			}
+		}
+	}
+}
@@ -0,0 +1,274 @@
+package rocks.postgres;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import rocks.postgres.util.LatencyHistogram;
+import rocks.postgres.util.ResultFile;
+import rocks.postgres.util.WorkerLink;
+
+/*
+ * Runs no clients itself: waits for --workers JDBCBench processes started
+ * with --worker host:port, starts them all at once when the last one has
+ * connected, adds up the interval statistics they stream into one progress
+ * line per interval and merges their latency histograms into the final
+ * report. The workers should all run with the same --progress, interval i
+ * of every worker then covers the same time. See WorkerLink for the
+ * protocol.
+ */
+@Command(name = "coordinator", description = "Coordinate JDBCBench processes started with --worker and report their combined results.")
+public class Coordinator implements Callable<Integer> {
+	@Option(names = {"--port"}, description = "Port to wait for the workers on. Default is ${DEFAULT-VALUE}", defaultValue = "7654")
+	private int port = 7654;
+
+	@Option(names = {"--workers"}, description = "Number of workers to wait for before starting the run", required = true)
+	private int workers;
+
+	@Option(names = {"--result-file"}, description = "Write the combined results to this file, as CSV if it ends in .csv and as JSON otherwise.")
+	private Path resultFile;
+
+	/* how long a new connection gets to say hello before it is dropped */
+	private static final int HANDSHAKE_TIMEOUT_MILLIS = 10000;
+
+	/* interval index to {seconds, tps, succeeded, failed, latency sum, reports} */
+	private final TreeMap<Integer, double[]> intervals = new TreeMap<>();
+	private final List<Double> intervalTps = new ArrayList<>();
+	private final List<Double> intervalLatency = new ArrayList<>();
+	private int printedIntervals;
+	/* workers still connected, an interval is printed once all of them reported it */
+	private int liveWorkers;
+
+	private class Worker extends Thread {
+		final Socket socket;
+		final DataInputStream in;
+		final String label;
+		final int clients;
+		WorkerLink.Done done;
+
+		Worker(Socket socket) throws IOException {
+			this.socket = socket;
+			socket.setTcpNoDelay(true);
+			/* a stray or stalled connection must not keep the real workers waiting */
+			socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			if (in.readByte() != WorkerLink.HELLO || in.readInt() != WorkerLink.MAGIC) {
+				throw new IOException("not a JDBCBench worker");
+			}
+			int version = in.readInt();
+			if (version != WorkerLink.VERSION) {
+				throw new IOException("worker speaks protocol version " + version + ", expected " + WorkerLink.VERSION);
+			}
+			label = socket.getInetAddress().getHostAddress() + "/" + in.readLong();
+			clients = in.readInt();
+			/* intervals arrive only every --progress seconds */
+			socket.setSoTimeout(0);
+			setName("worker-" + label);
+		}
+
+		void signal(byte signal) throws IOException {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.writeByte(signal);
+			out.flush();
+		}
+
+		public void run() {
+			try {
+				while (done == null) {
+					byte type = in.readByte();
+					if (type == WorkerLink.INTERVAL) {
+						interval(new WorkerLink.Interval(in));
+					} else if (type == WorkerLink.DONE) {
+						done = new WorkerLink.Done(in);
+					} else {
+						throw new IOException("unknown message type " + type);
+					}
+				}
+			} catch (EOFException ex) {
+				System.err.println("Worker " + label + " disconnected before it was done");
+			} catch (IOException ex) {
+				System.err.println("Worker " + label + ": " + ex.getMessage());
+			} finally {
+				try {
+					socket.close();
+				} catch (IOException ex) {
+				}
+				workerEnded();
+			}
+		}
+	}
+
+	@Override
+	public Integer call() {
+		List<Worker> connected = new ArrayList<>();
+		try (ServerSocket server = new ServerSocket(port)) {
+			System.out.println("Waiting for " + workers + " workers on port " + server.getLocalPort());
+			while (connected.size() < workers) {
+				Socket socket = server.accept();
+				try {
+					Worker worker = new Worker(socket);
+					connected.add(worker);
+					System.out.println("Worker " + worker.label + " connected with " + worker.clients + " clients (" + connected.size() + "/" + workers + ")");
+				} catch (IOException ex) {
+					System.err.println("Rejected " + socket.getRemoteSocketAddress() + ": " + ex.getMessage());
+					socket.close();
+				}
+			}
+		} catch (IOException ex) {
+			System.err.println("Could not wait for workers on port " + port + ": " + ex.getMessage());
+			return 1;
+		}
+
+		/* the barrier: every worker starts its measured phase on this signal */
+		liveWorkers = connected.size();
+		for (Worker worker : connected) {
+			try {
+				worker.signal(WorkerLink.START);
+			} catch (IOException ex) {
+				System.err.println("Could not start worker " + worker.label + ": " + ex.getMessage());
+			}
+			worker.start();
+		}
+		System.out.println("* Starting Benchmark Run *");
+		for (Worker worker : connected) {
+			try {
+				worker.join();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return 1;
+			}
+		}
+		printRemainingIntervals();
+		return report(connected);
+	}
+
+	/* adds a worker's interval, prints it once every worker reported it */
+	private synchronized void interval(WorkerLink.Interval interval) {
+		double[] sums = intervals.computeIfAbsent(interval.index, i -> new double[6]);
+		sums[0] = Math.max(sums[0], interval.seconds);
+		sums[1] += interval.seconds > 0 ? interval.succeeded / interval.seconds : 0;
+		sums[2] += interval.succeeded;
+		sums[3] += interval.failed;
+		sums[4] += interval.latencySumMicros;
+		sums[5]++;
+		printCompleteIntervals();
+	}
+
+	/* a worker finished or went away, the others need not wait for its intervals */
+	private synchronized void workerEnded() {
+		liveWorkers--;
+		printCompleteIntervals();
+	}
+
+	private void printCompleteIntervals() {
+		while (intervals.containsKey(printedIntervals) && intervals.get(printedIntervals)[5] >= liveWorkers) {
+			printInterval(printedIntervals++);
+		}
+	}
+
+	/* intervals not every worker got to, e.g. because some finished earlier */
+	private synchronized void printRemainingIntervals() {
+		for (Integer index : intervals.tailMap(printedIntervals).keySet()) {
+			printInterval(index);
+		}
+	}
+
+	private void printInterval(int index) {
+		double[] sums = intervals.get(index);
+		String note = sums[5] < workers ? String.format(" (%.0f of %d workers)", sums[5], workers) : "";
+		double latency = sums[2] > 0 ? sums[4] / sums[2] / 1000.0 : 0;
+		double elapsed = intervals.headMap(index, true).values().stream().mapToDouble(s -> s[0]).sum();
+		System.out.printf("progress: %.1f s, %.1f tps, lat %.3f ms, %.0f failed%s%n", elapsed, sums[1], latency, sums[3], note);
+		intervalTps.add(sums[1]);
+		intervalLatency.add(latency);
+	}
+
+	private int report(List<Worker> connected) {
+		LatencyHistogram latency = new LatencyHistogram();
+		long transactions = 0, failed = 0, skipped = 0, late = 0;
+		double tps = 0, elapsed = 0;
+		int clients = 0, finished = 0;
+		System.out.println("* Benchmark finished *");
+		System.out.println("\n* Coordinator Report *");
+		System.out.println("----------------------\n");
+		for (Worker worker : connected) {
+			WorkerLink.Done done = worker.done;
+			if (done == null) {
+				System.out.printf("  %-30s no results%n", worker.label);
+				continue;
+			}
+			finished++;
+			clients += worker.clients;
+			transactions += done.transactions;
+			failed += done.failed;
+			skipped += done.skipped;
+			late += done.late;
+			elapsed = Math.max(elapsed, done.elapsed);
+			double workerTps = (done.transactions - done.failed) / done.elapsed;
+			tps += workerTps;
+			latency.add(done.latency);
+			System.out.printf("  %-30s %5d clients %10d txn %10.1f tps  avg %.3f ms  p99 %.3f ms  %d failed%n", worker.label, worker.clients,
+					done.transactions, workerTps, done.latency.getMean() / 1000.0, done.latency.getValueAtPercentile(99) / 1000.0, done.failed);
+		}
+		System.out.println();
+		System.out.println("Workers: " + finished + " of " + workers + " finished, " + clients + " clients");
+		System.out.println(failed + " / " + transactions + " failed to complete.");
+		if (skipped + late > 0) {
+			System.out.println("Transactions above the latency limit: " + late + " late, " + skipped + " skipped.");
+		}
+		System.out.println("Transaction rate: " + tps + " txn/sec.");
+		System.out.printf("Latency average: %.3f ms%n", latency.getMean() / 1000.0);
+		System.out.printf("Latency percentiles: p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms%n",
+				latency.getValueAtPercentile(50) / 1000.0, latency.getValueAtPercentile(90) / 1000.0,
+				latency.getValueAtPercentile(99) / 1000.0, latency.getValueAtPercentile(99.9) / 1000.0, latency.getMax() / 1000.0);
+
+		if (resultFile != null) {
+			Map<String, Object> config = new LinkedHashMap<>();
+			config.put("workers", workers);
+			config.put("clients", clients);
+			Map<String, Object> result = new LinkedHashMap<>();
+			result.put("timestamp", Instant.now().toString());
+			result.put("config", config);
+			result.put("transactions", transactions);
+			result.put("failed", failed);
+			result.put("skipped", skipped);
+			result.put("late", late);
+			result.put("elapsed_s", elapsed);
+			result.put("tps", tps);
+			Map<String, Object> percentiles = new LinkedHashMap<>();
+			percentiles.put("avg_ms", latency.getMean() / 1000.0);
+			percentiles.put("p50_ms", latency.getValueAtPercentile(50) / 1000.0);
+			percentiles.put("p90_ms", latency.getValueAtPercentile(90) / 1000.0);
+			percentiles.put("p99_ms", latency.getValueAtPercentile(99) / 1000.0);
+			percentiles.put("p999_ms", latency.getValueAtPercentile(99.9) / 1000.0);
+			percentiles.put("max_ms", latency.getMax() / 1000.0);
+			result.put("latency", percentiles);
+			Map<String, Object> samples = new LinkedHashMap<>();
+			samples.put("tps", intervalTps);
+			samples.put("latency_ms", intervalLatency);
+			result.put("intervals", samples);
+			try {
+				ResultFile.write(resultFile, result);
+				System.out.println("Results written to " + resultFile);
+			} catch (IOException ex) {
+				System.err.println("Could not write " + resultFile + ": " + ex.getMessage());
+			}
+		}
+		return finished == workers ? 0 : 1;
+	}
+}
@@ -5,40 +5,141 @@
 
 package rocks.postgres;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.time.Instant;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.SplittableRandom;
 import java.util.concurrent.Callable;
-
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.random.RandomGenerator;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.EventType;
+import jdk.jfr.Recording;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.core.BaseConnection;
+import org.postgresql.core.Oid;
+import org.postgresql.core.QueryExecutor;
+import org.postgresql.core.QueryExecutorBase;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
+import rocks.postgres.util.ConnectionPool;
+import rocks.postgres.util.CopyRowWriter;
+import rocks.postgres.util.FailoverMonitor;
+import rocks.postgres.util.KeyDistribution;
+import rocks.postgres.util.LatencyHistogram;
 import rocks.postgres.util.PGServiceFile;
 import rocks.postgres.util.QueryUtils;
-
-@Command(name="JDBCBench", version = "0.1")
+import rocks.postgres.util.ResultFile;
+import rocks.postgres.util.Script;
+import rocks.postgres.util.ServerMonitor;
+import rocks.postgres.util.StatementEvent;
+import rocks.postgres.util.Statistics;
+import rocks.postgres.util.StubServer;
+import rocks.postgres.util.Telemetry;
+import rocks.postgres.util.TransactionEvent;
+import rocks.postgres.util.TransactionLog;
+import rocks.postgres.util.WorkerLink;
+
+@Command(name="JDBCBench", version = "0.1", subcommands = {Compare.class, Coordinator.class})
 
 public class JDBCBench implements Callable <Integer> {
+	/*
+	 * Each protocol pins the pgjdbc connection properties that select it, so
+	 * the driver defaults (server side prepare after 5 executions, binary
+	 * transfer once prepared) can not blur the modes together.
+	 */
 	private enum Protocol  {
-			SIMPLE("simple"),
-			EXTENDED("extended"),
-			PREPARED("prepared");
+			SIMPLE("simple", "simple", 0, false),       /* simple Query messages, values inlined */
+			EXTENDED("extended", "extended", 0, false), /* Parse/Bind/Execute of unnamed statements every time */
+			PREPARED("prepared", "extended", 1, false), /* named server side statements, text results */
+			BINARY("binary", "extended", -1, true);     /* named server side statements, binary parameters and results */
 
-		Protocol(String label){
+		Protocol(String label, String queryMode, int prepareThreshold, boolean binaryTransfer){
 				this.label = label;
 				this.name = label;
+				this.queryMode = queryMode;
+				this.prepareThreshold = prepareThreshold;
+				this.binaryTransfer = binaryTransfer;
 		}
 		private final String label;
 		private final String name;
+		private final String queryMode;
+		private final int prepareThreshold;
+		private final boolean binaryTransfer;
 		public String getName() {
 			return name;
 		}
+
+		void apply(Properties props) {
+			props.setProperty("preferQueryMode", queryMode);
+			props.setProperty("prepareThreshold", Integer.toString(prepareThreshold));
+			props.setProperty("binaryTransfer", Boolean.toString(binaryTransfer));
+		}
+	}
+
+	/* the statements of the built-in transactions, timed separately with --report-per-command */
+	private enum TpcbStatement {
+		UPDATE_ACCOUNTS("UPDATE pgbench_accounts"),
+		SELECT_BALANCE("SELECT abalance"),
+		UPDATE_TELLERS("UPDATE pgbench_tellers"),
+		UPDATE_BRANCHES("UPDATE pgbench_branches"),
+		INSERT_HISTORY("INSERT INTO pgbench_history"),
+		COMMIT("COMMIT"),
+		PIPELINE("pipelined transaction");
+
+		TpcbStatement(String label) {
+			this.label = label;
+		}
+		private final String label;
+	}
+
+	private enum ReadBalance {
+		ROUND_ROBIN,  /* every client cycles through the read hosts */
+		LEAST_LOADED  /* the read host with the fewest transactions in flight */
+	}
+
+	private enum Isolation {
+		READ_COMMITTED(Connection.TRANSACTION_READ_COMMITTED),
+		REPEATABLE_READ(Connection.TRANSACTION_REPEATABLE_READ),
+		SERIALIZABLE(Connection.TRANSACTION_SERIALIZABLE);
+
+		Isolation(int level) {
+			this.level = level;
+		}
+
+		private final int level;
+	}
+
+	private enum InitMethod {
+		INSERT,  /* one INSERT per row */
+		COPY,    /* rows generated on the client and streamed with COPY FROM STDIN */
+		SERVER   /* rows generated on the server with generate_series, like pgbench -I G */
 	}
 
 	private enum InitSteps {
@@ -85,7 +186,7 @@ public class JDBCBench implements Callable <Integer> {
 	@Option(names = {"--unlogged-tables"}, description = "Create unlogged tables", defaultValue = "false")
 	private boolean unloggedTables = false;
 
-	@Option(names = {"--host", "-h"}, description = "Database server's host name", defaultValue = "localhost")
+	@Option(names = {"--host", "-h"}, description = "Database server's host name, or a comma separated list of host[:port] of which the primary is used", defaultValue = "localhost")
 	private String host = "localhost";
 
 	@Option(names={"--no-vacuum", "-n"}, description = "Perform no vacuuming before running the test. This option is necessary if you are running a custom test scenario that does not include the standard tables", defaultValue = "false")
@@ -94,9 +195,30 @@ public class JDBCBench implements Callable <Integer> {
 	@Option(names={"--port", "-p"}, description = "Database server's port number", defaultValue = "5432")
 	private int port = 5432;
 
-	@Option(names={"--protocol", "-M"}, description = "", defaultValue = "SIMPLE")
+	@Option(names={"--protocol", "-M"}, description = "Protocol used to submit queries: ${COMPLETION-CANDIDATES}. Default is ${DEFAULT-VALUE}", defaultValue = "SIMPLE")
 	private Protocol protocol= Protocol.SIMPLE;
 
+	@Option(names={"--pipeline"}, description = "Send the whole TPC-B transaction as one multi-statement string in a single network round trip.", defaultValue = "false")
+	private boolean pipeline = false;
+
+	@Option(names={"--stub-server"}, description = "Run against an embedded loopback server that answers the TPC-B statements with canned results instead of a database, to measure the throughput ceiling of the client side. Implies --no-vacuum.", defaultValue = "false")
+	private boolean stubServer = false;
+
+	@Option(names={"--read-hosts"}, split = ",", description = "Comma separated list of host[:port] of read replicas. Select-only transactions are sent to them, the rest to the primary.")
+	private List<String> readHosts = new ArrayList<>();
+
+	@Option(names={"--read-balance"}, description = "How select-only transactions are spread over the read hosts: ${COMPLETION-CANDIDATES}. Default is ${DEFAULT-VALUE}", defaultValue = "ROUND_ROBIN")
+	private ReadBalance readBalance = ReadBalance.ROUND_ROBIN;
+
+	@Option(names={"--failover"}, description = "Measure recovery from failovers: enable the wrapper's failover plugin, resume or reconnect clients after connection failures and report the time to the first successful transaction and back to full throughput.", defaultValue = "false")
+	private boolean failover = false;
+
+	@Option(names={"--isolation"}, description = "Transaction isolation level of the benchmark connections: ${COMPLETION-CANDIDATES}. Default is the server's default_transaction_isolation")
+	private Isolation isolation;
+
+	@Option(names={"--max-tries"}, description = "Run a transaction that fails with a serialization failure (40001) or deadlock (40P01) up to this many times in all, 0 retries until --time runs out. Default is ${DEFAULT-VALUE} (no retries)", defaultValue = "1")
+	private int maxTries = 1;
+
 	@Option(names={"--pgservice", "-P"}, description = "Use named service", defaultValue = "")
 	private String service = null;
 
@@ -107,9 +229,24 @@ public class JDBCBench implements Callable <Integer> {
 	@Option(names={"--select", "-S"}, description = "Run built-in select-only script.", defaultValue = "false")
 	private boolean selectOnly = false;
 
+	@Option(names={"--file", "-f"}, description = "Run the custom transaction script in file (pgbench syntax) instead of the built-in one. An optional @weight sets how often it is picked relative to the other scripts. May be repeated.")
+	private List<String> scriptFiles = new ArrayList<>();
+
+	@Option(names={"--distribution"}, description = "Distribution of the account, teller and branch keys: uniform, gaussian:theta, exponential:theta or zipfian:s. Default is ${DEFAULT-VALUE}", defaultValue = "uniform")
+	private String distribution = "uniform";
+
 	@Option(names={"--transactions", "-t"}, description = "Number of transactions each client runs. Default is ${DEFAULT-VALUE}", defaultValue = "10")
 	private int transactionsPerClient = 10;
 
+	@Option(names={"--time", "-T"}, description = "Run the test for this many seconds instead of a fixed number of transactions per client. Default is ${DEFAULT-VALUE}", defaultValue = "0")
+	private int duration = 0;
+
+	@Option(names={"--rate", "-R"}, description = "Execute transactions targeting the specified aggregate rate (transactions per second) on a Poisson schedule instead of as fast as possible. Latency is measured from the scheduled start. Default is ${DEFAULT-VALUE} (unthrottled)", defaultValue = "0")
+	private double rate = 0;
+
+	@Option(names={"--latency-limit", "-L"}, description = "Count transactions lasting more than this many milliseconds as late. With --rate, transactions already that late when they are due are skipped. Default is ${DEFAULT-VALUE} (no limit)", defaultValue = "0")
+	private double latencyLimit = 0;
+
 	@Option(names = {"--vacuum-all", "-v"}, description = "Vacuum all four standard tables before running the test. With neither -n nor -v, pgbench will vacuum the pgbench_tellers and pgbench_branches tables, and will truncate pgbench_history.", defaultValue = "true")
 	private boolean vacuumAll = true;
 
@@ -125,30 +262,219 @@ public class JDBCBench implements Callable <Integer> {
 	@Option(names={"--initialize", "-i"}, description = "Initializes database, tables and data", defaultValue = "false")
 	private boolean initializeDataset=false;
 
+	@Option(names={"--executor"}, description = "How the clients are run: platform (one platform thread per client), virtual (one virtual thread per client) or pool:N (N platform threads multiplexing the clients one transaction at a time). Default is ${DEFAULT-VALUE}", defaultValue = "platform")
+	private String executor = "platform";
+	/* N of --executor pool:N, 0 when the clients have threads of their own */
+	private int executorThreads;
+
+	@Option(names={"--connect", "-C"}, description = "Establish a new connection for each transaction, rather than doing it just once per client session.", defaultValue = "false")
+	private boolean connectPerTransaction = false;
+
+	@Option(names={"--pool"}, description = "Share this many pooled connections between all clients, each transaction borrows one. Default is ${DEFAULT-VALUE} (one connection per client)", defaultValue = "0")
+	private int poolSize = 0;
+
+	@Option(names={"--init-jobs"}, description = "Load the initial data in this many partitions, each on its own connection and thread. Default is ${DEFAULT-VALUE}", defaultValue = "1")
+	private int initJobs = 1;
+
+	@Option(names={"--init-method"}, description = "How the initial data is loaded: ${COMPLETION-CANDIDATES}. Default is ${DEFAULT-VALUE}", defaultValue = "INSERT")
+	private InitMethod initMethod = InitMethod.INSERT;
+
 	@Option(names={"--verbose"}, description = "Verbose output", defaultValue = "false")
 	private boolean verbose = false;
 
+	@Option(names={"--report-per-command", "-r"}, description = "Report the average and percentile latency and the failures of each statement of the built-in transaction after the run.", defaultValue = "false")
+	private boolean reportPerCommand = false;
+
+	@Option(names={"--log", "-l"}, description = "Write a line per transaction (client, transaction number, latency, script, end time and schedule lag) to <log-prefix>.<pid>.", defaultValue = "false")
+	private boolean log = false;
+
+	@Option(names={"--log-prefix"}, description = "Prefix of the transaction log file. Default is ${DEFAULT-VALUE}", defaultValue = "jdbcbench_log")
+	private String logPrefix = "jdbcbench_log";
+
+	@Option(names={"--sampling-rate"}, description = "Fraction of the transactions written to the log, e.g. 0.01 logs one in a hundred. Default is ${DEFAULT-VALUE}", defaultValue = "1.0")
+	private double samplingRate = 1.0;
+
+	@Option(names={"--aggregate-interval"}, description = "Log one line of aggregates per this many seconds instead of a line per transaction. Default is ${DEFAULT-VALUE} (no aggregation)", defaultValue = "0")
+	private int aggregateInterval = 0;
+
+	@Option(names={"--result-file"}, description = "Write the configuration and results of the run to this file, as CSV if it ends in .csv and as JSON otherwise. Compare result files with the compare subcommand.")
+	private Path resultFile;
+
+	@Option(names={"--jfr"}, description = "Record a JDK Flight Recorder file of the measured phase only, including the transaction and statement events of the clients.")
+	private Path jfrFile;
+
+	@Option(names={"--server-stats"}, description = "Sample pg_stat_database, the wait events in pg_stat_activity, checkpoints, WAL and, when installed, pg_stat_statements on a connection of its own every progress interval (1 s without --progress) and report them next to the client throughput.", defaultValue = "false")
+	private boolean serverStats = false;
+
+	@Option(names={"--worker"}, description = "Run as a worker of a coordinator at host:port (see the coordinator subcommand): start the measured phase on its signal and send it the interval statistics and the final latency histogram.")
+	private String worker;
+
+	@Option(names={"--warmup"}, description = "Run the workload this long before measuring: N or Ns for seconds, Ntx for transactions of all clients together. All statistics are reset when it ends.")
+	private String warmup;
+
+	@Option(names={"--steady-state"}, description = "Extend the warm-up until the throughput of the last " + STEADY_STATE_INTERVALS + " progress intervals varies by less than this many percent (standard deviation over mean). Default is ${DEFAULT-VALUE} (off)", defaultValue = "0")
+	private double steadyState = 0;
+
+	@Option(names={"--steady-state-timeout"}, description = "Start measuring after this many seconds of warm-up even without a steady state. Default is ${DEFAULT-VALUE}", defaultValue = "300")
+	private int steadyStateTimeout = 300;
+
+	@Option(names={"--progress"}, description = "Show progress report every N seconds, 0 disables. Default is ${DEFAULT-VALUE}", defaultValue = "0")
+	private int progress = 0;
+
 	private boolean isTransactionBlock = true;
 
-	private int failedTransactions = 0;
-	private int transactionCount = 0;
-	private long startTime = 0;
+	/*
+	 * Updated by every client after every transaction, so these are striped
+	 * adders rather than fields guarded by the JDBCBench monitor.
+	 *
+	 * The instance is replaced as a whole when the measured phase starts
+	 * after a warm-up. A client takes the current instance when it starts a
+	 * transaction and records the transaction there, so one that straddles
+	 * the switch stays in the warm-up counters, and a client that sees a new
+	 * instance resets its own histograms before its next transaction.
+	 */
+	static final class Counters {
+		/* 0 during the warm-up, 1 once measuring */
+		final int generation;
+		final LongAdder failedTransactions = new LongAdder();
+		final LongAdder transactionCount = new LongAdder();
+		/* transactions not run because they were already past --latency-limit, and those that finished past it */
+		final LongAdder skippedTransactions = new LongAdder();
+		final LongAdder lateTransactions = new LongAdder();
+		/* retry attempts, transactions retried at least once and those that then succeeded */
+		final LongAdder retries = new LongAdder();
+		final LongAdder retriedTransactions = new LongAdder();
+		final LongAdder retriedSucceeded = new LongAdder();
+		/* transactions that finally failed with a serialization failure or a deadlock */
+		final LongAdder serializationFailures = new LongAdder();
+		final LongAdder deadlockFailures = new LongAdder();
+		/* latency sums in microseconds of the successful transactions, read by the progress thread */
+		final LongAdder latencySum = new LongAdder();
+		final DoubleAdder latencySumSquares = new DoubleAdder();
+
+		Counters(int generation) {
+			this.generation = generation;
+		}
+
+		boolean isMeasured() {
+			return generation > 0;
+		}
 
+		void recordLatency(long latencyMicros) {
+			latencySum.add(latencyMicros);
+			latencySumSquares.add((double) latencyMicros * latencyMicros);
+		}
+	}
 
-	private MemoryWatcherThread MemoryWatcher;
+	private volatile Counters counters = new Counters(0);
+	private CountDownLatch clientsDone;
+	private long startTime = 0;
+	private long endTime = 0;
+	/* when clients stop with --time, only known once the measured phase starts */
+	private volatile long runDeadline = Long.MAX_VALUE;
+	/* --warmup parsed, and how long the warm-up actually took */
+	private long warmupSecondsTarget;
+	private long warmupTransactions;
+	private double warmupSeconds;
+	private static final int STEADY_STATE_INTERVALS = 5;
+
+	/* per client latencies are merged here as the clients finish */
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final LatencyHistogram scheduleLag = new LatencyHistogram();
+	private final LatencyHistogram connectLatency = new LatencyHistogram();
+	private final LatencyHistogram poolWait = new LatencyHistogram();
+	private final LatencyHistogram[] statementLatency = newStatementHistograms();
+	private final long[] statementFailures = new long[TpcbStatement.values().length];
+	private ConnectionPool connectionPool;
+	/* statement caches of the pooled connections, read only once the run starts */
+	private final IdentityHashMap<Connection, QueryUtils> pooledQueryUtils = new IdentityHashMap<>();
+
+	private Telemetry telemetry;
+	/* client side cost of the transactions, summed over the clients as they finish */
+	private long clientAllocatedBytes;
+	private long clientAllocationSamples;
+	private long clientCpuNanos;
+	private long clientCpuSamples;
+	private TransactionLog transactionLog;
+	private FailoverMonitor failoverMonitor;
+	private ServerMonitor serverMonitor;
+	/* dropped when the coordinator goes away, the run itself carries on */
+	private volatile WorkerLink workerLink;
+	/* share of the throughput before a failover that counts as recovered */
+	private static final double FULL_THROUGHPUT = 0.9;
+	/* the backoff before retry n is drawn from [0, min(RETRY_BASE_NANOS * 2^(n-1), RETRY_MAX_NANOS)) */
+	private static final long RETRY_BASE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final long RETRY_MAX_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	/* how long a client waits before trying to reconnect to a lost server */
+	private static final long RECONNECT_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	/* checked before an event is allocated, so nothing is allocated for JFR unless it records them */
+	private static final EventType TRANSACTION_EVENTS = EventType.getEventType(TransactionEvent.class);
+	private static final EventType STATEMENT_EVENTS = EventType.getEventType(StatementEvent.class);
+
+	private KeyDistribution accountKeys;
+	private KeyDistribution tellerKeys;
+	private KeyDistribution branchKeys;
+	/* clients split their own generator off this one, no generator is shared between threads */
+	private final SplittableRandom seedRandom = new SplittableRandom();
+
+	private final List<Script> scripts = new ArrayList<>();
+	private int totalScriptWeight = 0;
 
 	private final String jdbcProtocol = "jdbc:aws-wrapper:postgresql://"; // jdbc:postgresql://";
 
+	/*
+	 * host may be a comma separated list, the driver then connects to
+	 * whichever of them is the primary.
+	 */
 	private String createUrl(String host, int port, String database){
-		StringBuilder stringBuilder = new StringBuilder(jdbcProtocol)
-				.append(host)
-				.append(':')
-				.append(port)
-				.append('/')
+		String[] hosts = host.split(",");
+		StringBuilder stringBuilder = new StringBuilder(jdbcProtocol);
+		for (int i = 0; i < hosts.length; i++) {
+			if (i > 0) {
+				stringBuilder.append(',');
+			}
+			stringBuilder.append(withPort(hosts[i].trim(), port));
+		}
+		stringBuilder.append('/')
 				.append(database);
+		if (hosts.length > 1) {
+			stringBuilder.append("?targetServerType=primary");
+		}
 		return stringBuilder.toString();
 	}
+
+	private static String withPort(String host, int port) {
+		return host.indexOf(':') >= 0 ? host : host + ':' + port;
+	}
 	String dbUrl;
+	private Properties connectionProps;
+	/* with --read-hosts, index 0 is the primary and the read hosts follow */
+	private final List<String> hostLabels = new ArrayList<>();
+	private String[] readUrls;
+	private AtomicInteger[] readsInFlight;
+	private LatencyHistogram[] hostLatency;
+	private long[] hostFailures;
+	private String effectiveProtocol;
+
+	private Connection openConnection(Properties props) throws SQLException {
+		if ( service != null && !service.equals("") ){
+			return openConnection(jdbcProtocol + props.getProperty("host")+'/'+props.getProperty("dbname"), props );
+		}
+		return openConnection(dbUrl, props);
+	}
+
+	/*
+	 * Every benchmark connection, to the primary or to a read host, goes
+	 * through here so they all run with the same session settings.
+	 */
+	private Connection openConnection(String url, Properties props) throws SQLException {
+		Connection con = DriverManager.getConnection(url, props);
+		if (isolation != null) {
+			/* SET SESSION CHARACTERISTICS, so it holds for the scripts' own transactions too */
+			con.setTransactionIsolation(isolation.level);
+		}
+		return con;
+	}
 
 	@Override
 	public Integer call() {
@@ -172,7 +498,123 @@ public class JDBCBench implements Callable <Integer> {
 				props.put ("password", password);
 			}
 		}
+		protocol.apply(props);
+		if (failover) {
+			/* the plugin list of a service file wins */
+			props.putIfAbsent("wrapperPlugins", "failover");
+		}
+		StubServer stub = null;
+		if (stubServer) {
+			try {
+				stub = new StubServer(0, Runtime.getRuntime().availableProcessors());
+				host = "127.0.0.1";
+				port = stub.getPort();
+				service = null;
+				vacuumAll = false;
+			} catch (IOException ex) {
+				System.err.println("Could not start the stub server: " + ex.getMessage());
+				return 1;
+			}
+		}
 		dbUrl = createUrl(host, port, dbName);
+		if (!readHosts.isEmpty()) {
+			hostLabels.add(host);
+			readUrls = new String[readHosts.size()];
+			readsInFlight = new AtomicInteger[readHosts.size()];
+			for (int i = 0; i < readUrls.length; i++) {
+				hostLabels.add(withPort(readHosts.get(i).trim(), port));
+				readUrls[i] = createUrl(readHosts.get(i).trim(), port, dbName);
+				readsInFlight[i] = new AtomicInteger();
+			}
+			hostLatency = newHostHistograms();
+			hostFailures = new long[hostLabels.size()];
+		}
+
+		for (String scriptFile : scriptFiles) {
+			try {
+				Script script = Script.load(scriptFile);
+				scripts.add(script);
+				totalScriptWeight += script.getWeight();
+			} catch (Exception ex) {
+				System.err.println("Error loading script " + scriptFile + ": " + ex.getMessage());
+				return 1;
+			}
+		}
+		if (!scripts.isEmpty() && totalScriptWeight <= 0) {
+			System.err.println("Total weight of the scripts must be positive");
+			return 1;
+		}
+		if (warmup != null) {
+			String value = warmup.trim().toLowerCase();
+			try {
+				if (value.endsWith("tx")) {
+					warmupTransactions = Long.parseLong(value.substring(0, value.length() - 2));
+				} else {
+					warmupSecondsTarget = Long.parseLong(value.endsWith("s") ? value.substring(0, value.length() - 1) : value);
+				}
+			} catch (NumberFormatException ex) {
+				warmupTransactions = -1;
+			}
+			if (warmupTransactions < 0 || warmupSecondsTarget < 0) {
+				System.err.println("--warmup must be N or Ns for seconds or Ntx for transactions");
+				return 1;
+			}
+		}
+		if (executor.startsWith("pool:")) {
+			try {
+				executorThreads = Integer.parseInt(executor.substring("pool:".length()));
+			} catch (NumberFormatException ex) {
+				executorThreads = 0;
+			}
+			if (executorThreads <= 0) {
+				System.err.println("--executor pool:N needs a positive number of threads");
+				return 1;
+			}
+		} else if (!executor.equals("virtual") && !executor.equals("platform")) {
+			System.err.println("Unknown executor " + executor + ", expected virtual, platform or pool:N");
+			return 1;
+		}
+		if (connectPerTransaction && poolSize > 0) {
+			System.err.println("--connect and --pool can not be combined");
+			return 1;
+		}
+		if (!readHosts.isEmpty() && (connectPerTransaction || poolSize > 0)) {
+			System.err.println("--read-hosts can not be combined with --connect or --pool");
+			return 1;
+		}
+		if (failover && poolSize > 0) {
+			System.err.println("--failover can not be combined with --pool");
+			return 1;
+		}
+		if (steadyState < 0) {
+			System.err.println("--steady-state must not be negative");
+			return 1;
+		}
+		if (maxTries < 0 || (maxTries == 0 && duration <= 0)) {
+			System.err.println("--max-tries must be at least 1, or 0 together with --time");
+			return 1;
+		}
+		if (samplingRate <= 0 || samplingRate > 1) {
+			System.err.println("--sampling-rate must be in (0, 1]");
+			return 1;
+		}
+		if ((samplingRate < 1 || aggregateInterval > 0) && !log) {
+			System.err.println("--sampling-rate and --aggregate-interval require --log");
+			return 1;
+		}
+		if (samplingRate < 1 && aggregateInterval > 0) {
+			System.err.println("--sampling-rate and --aggregate-interval can not be combined");
+			return 1;
+		}
+		try {
+			accountKeys = KeyDistribution.create(distribution, (long) numAccounts * scale);
+			tellerKeys = KeyDistribution.create(distribution, (long) numTellers * scale);
+			branchKeys = KeyDistribution.create(distribution, (long) numBranches * scale);
+		} catch (IllegalArgumentException ex) {
+			System.err.println(ex.getMessage());
+			return 1;
+		}
+
 		System.out
 				.println("*********************************************************");
 		System.out
@@ -181,31 +623,74 @@ public class JDBCBench implements Callable <Integer> {
 				.println("*********************************************************");
 		System.out.println();
 		System.out.println("URL:" + dbUrl );
+		if (readUrls != null) {
+			for (String readUrl : readUrls) {
+				System.out.println("Read URL:" + readUrl);
+			}
+			System.out.println("Read balance: " + readBalance + (selectOnly ? "" : " (only select-only transactions go to the read hosts)"));
+		}
+		if (stub != null) {
+			System.out.println("Stub server: no database, statements get canned results");
+		}
+		if (failover) {
+			System.out.println("Failover: wrapperPlugins=" + props.getProperty("wrapperPlugins") + ", clients resume or reconnect after connection failures");
+		}
 		System.out.println();
 		System.out.println("Number of clients: " + numClients);
-		System.out.println("Number of transactions per client: "
-				+ transactionsPerClient);
+		if (duration > 0) {
+			System.out.println("Duration: " + duration + " s");
+		} else {
+			System.out.println("Number of transactions per client: "
+					+ transactionsPerClient);
+		}
+		if (rate > 0) {
+			System.out.println("Target rate: " + rate + " txn/sec");
+		}
+		if (latencyLimit > 0) {
+			System.out.println("Latency limit: " + latencyLimit + " ms");
+		}
+
+		if (connectPerTransaction) {
+			System.out.println("Connection mode: new connection per transaction");
+		} else if (poolSize > 0) {
+			System.out.println("Connection mode: " + poolSize + " pooled connections");
+		}
 
-		if (selectOnly) {
+		if (!scripts.isEmpty()) {
+			for (Script script : scripts) {
+				System.out.println("Transaction mode:  script " + script.getName() + " (weight " + script.getWeight() + ")");
+			}
+		} else if (selectOnly) {
 			System.out.println("Transaction mode:  SELECT-only");
 		} else {
 			System.out.println("Transaction mode:  TPC-B like");
 		}
+		System.out.println("Key distribution: " + distribution);
+		if (warmup != null || steadyState > 0) {
+			System.out.println("Warm-up: " + (warmupTransactions > 0 ? warmupTransactions + " transactions" : warmupSecondsTarget + " s")
+					+ (steadyState > 0 ? String.format(", then until the throughput varies less than %.1f%% over %d intervals", steadyState, STEADY_STATE_INTERVALS) : ""));
+		}
+		if (isolation != null || maxTries != 1) {
+			System.out.println("Isolation: " + (isolation != null ? isolation : "server default")
+					+ ", max tries: " + (maxTries == 0 ? "unlimited" : maxTries));
+		}
+		System.out.println("Protocol: " + protocolDescription());
 
 		System.out.println();
 
 		try {
-			Connection connection;
-			if ( service != null && !service.equals("") ){
-				connection = DriverManager.getConnection(jdbcProtocol + props.getProperty("host")+'/'+props.getProperty("dbname"), props );
-			} else {
-
-				connection = DriverManager.getConnection(dbUrl, props);
-			}
+			Connection connection = openConnection(props);
 			executeTest(connection, initializeDataset, props);
 		} catch (Exception e) {
 			System.err.println(e.getMessage());
 			e.printStackTrace();
+		} finally {
+			if (stub != null) {
+				try {
+					stub.close();
+				} catch (IOException ex) {
+				}
+			}
 		}
 		return 0;
 	}
@@ -215,8 +700,7 @@ public class JDBCBench implements Callable <Integer> {
 	 */
 
 	public static void main(String[] args) {
-		new CommandLine(new JDBCBench()).execute(args);
-
+		System.exit(new CommandLine(new JDBCBench()).execute(args));
 	}
 
 	public JDBCBench() {
@@ -224,8 +708,7 @@ public class JDBCBench implements Callable <Integer> {
 
 	public void executeTest(Connection con, boolean init, Properties props) {
 		int clientCount;
-		List<Thread> clients = new ArrayList<Thread>();
-		Thread t;
+		List<ClientThread> clients = new ArrayList<ClientThread>();
 
 		PGServiceFile pgServiceFile = PGServiceFile.load();
 		if ( service != null && !service.equals("") ) {
@@ -238,6 +721,9 @@ public class JDBCBench implements Callable <Integer> {
 				throwables.printStackTrace();
 			}
 		}
+		connectionProps = props;
+		effectiveProtocol = describeConnectionProtocol(con);
+		System.out.println("Effective protocol: " + effectiveProtocol);
 
 		try {
 			if (init) {
@@ -250,11 +736,33 @@ public class JDBCBench implements Callable <Integer> {
 				System.out.println("Vacuuming tables ");
 				vacuum( con );
 			}
+			if (log) {
+				Path logFile = Paths.get(logPrefix + "." + ProcessHandle.current().pid());
+				transactionLog = new TransactionLog(logFile, 1 << 16, aggregateInterval, rate > 0);
+				System.out.println("Logging transactions to " + logFile);
+			}
+			if (worker != null) {
+				/* says hello now, the start barrier comes once the clients are ready */
+				workerLink = new WorkerLink(worker, numClients);
+			}
 			System.out.println("* Starting Benchmark Run *");
-			MemoryWatcher = new MemoryWatcherThread();
-			MemoryWatcher.start();
+			Recording recording = null;
+			if (jfrFile != null) {
+				recording = new Recording(Configuration.getConfiguration("default"));
+				recording.setName("JDBCBench");
+				recording.enable(TransactionEvent.class);
+				recording.enable(StatementEvent.class);
+				recording.setDestination(jfrFile);
+			}
 
-			startTime = System.nanoTime();
+			Connection monitorConnection = null;
+			if (serverStats) {
+				try {
+					monitorConnection = openConnection(props);
+				} catch (SQLException ex) {
+					System.err.println("Not sampling server statistics: " + ex.getMessage());
+				}
+			}
 
 			/*
 			 * Cache the client count because once threads start, if the
@@ -262,23 +770,35 @@ public class JDBCBench implements Callable <Integer> {
 			 * before all the client threads have even been started.
 			 */
 			clientCount = numClients;
+			clientsDone = new CountDownLatch(clientCount);
+
+			if (poolSize > 0) {
+				/* Re-use the existing connection as the first pooled one */
+				List<Connection> pooled = new ArrayList<>();
+				pooled.add(con);
+				for (int i = 1; i < poolSize; i++) {
+					pooled.add(openConnection(props));
+				}
+				connectionPool = new ConnectionPool(pooled);
+				for (Connection pooledCon : pooled) {
+					pooledQueryUtils.put(pooledCon, newQueryUtils());
+				}
+			} else if (connectPerTransaction) {
+				con.close();
+			}
 
 			for (int i = 0; i < numClients; i++) {
 				Connection clientCon;
 				/* Re-use the existing connection for the first client */
-				if (i == 0) {
+				if (connectPerTransaction || connectionPool != null) {
+					clientCon = null;
+				} else if (i == 0) {
 					clientCon = con;
 				} else {
-
-					if ( service != null && !service.equals("") ){
-						clientCon = DriverManager.getConnection(jdbcProtocol + props.getProperty("host")+'/'+props.getProperty("dbname"), props );
-					} else {
-
-						clientCon = DriverManager.getConnection(dbUrl, props);
-					}
+					clientCon = openConnection(props);
 				}
 
-				Thread clientThread = new ClientThread(transactionsPerClient, i,
+				ClientThread clientThread = new ClientThread(transactionsPerClient, i,
 						clientCon);
 				clients.add(clientThread);
 			}
@@ -288,117 +808,712 @@ public class JDBCBench implements Callable <Integer> {
 			 * condition. Fast ending clients were reporting that all clients
 			 * were finished before some had even been started.
 			 */
-			for (int i = 0; i < clientCount; i++) {
-				System.out.println("Starting client " + (i + 1));
-				t = clients.get(i);
-				t.start();
+			ProgressThread progressThread;
+			ExecutorService pool;
+			if (warmup != null || steadyState > 0) {
+				ProgressThread warmupThread = new ProgressThread(progress > 0 ? progress : 1, progress > 0, counters, System.nanoTime());
+				warmupThread.start();
+				pool = startClients(clients);
+				awaitWarmup(warmupThread);
+				warmupThread.interrupt();
+				warmupThread.join();
+				awaitCoordinator();
+				progressThread = beginMeasurement(recording, monitorConnection);
+			} else {
+				awaitCoordinator();
+				progressThread = beginMeasurement(recording, monitorConnection);
+				pool = startClients(clients);
 			}
 
+			clientsDone.await();
+			if (pool != null) {
+				pool.shutdown();
+			}
+			if (transactionLog != null) {
+				transactionLog.close();
+				if (transactionLog.getDropped() > 0) {
+					System.out.println("Transaction log: " + transactionLog.getDropped() + " records dropped, the writer could not keep up");
+				}
+			}
+			if (connectionPool != null) {
+				connectionPool.close();
+			}
+			progressThread.interrupt();
+			progressThread.join();
+			if (serverMonitor != null) {
+				serverMonitor.stop();
+			}
+			telemetry.stop();
+			if (recording != null) {
+				/* writes the file to the destination */
+				recording.stop();
+				recording.close();
+				System.out.println("Flight recording written to " + jfrFile);
+			}
+			printReport();
+			if (serverMonitor != null) {
+				printServerStats(progressThread);
+			}
+			if (resultFile != null) {
+				writeResult(progressThread);
+			}
+			if (workerLink != null) {
+				sendResult();
+			}
+			if (monitorConnection != null) {
+				monitorConnection.close();
+			}
 		} catch (Exception e) {
 			System.err.println(e.getMessage());
 			e.printStackTrace();
 		}
 	}
 
-	public void reportDone() {
-		numClients--;
+	/*
+	 * With --worker, waits at the coordinator's start barrier. Called with
+	 * every connection open and the clients constructed (and warmed up), so
+	 * that all workers start measuring at the same moment.
+	 */
+	private void awaitCoordinator() throws IOException {
+		if (workerLink != null) {
+			System.out.println("Waiting for the coordinator at " + worker + " to start the run");
+			workerLink.awaitStart();
+		}
+	}
 
-		if (numClients <= 0) {
-			MemoryWatcher.interrupt();
-			long endTime = System.nanoTime();
-			double completion_time = ((double) endTime - (double) startTime) / 1E9;
-			System.out.println("* Benchmark finished *");
-			System.out.println("\n* Benchmark Report *");
-			System.out.println("--------------------\n");
-			System.out.println("Time to execute " + transactionCount
-					+ " transactions: " + completion_time + " seconds.");
-			System.out.println("Max/Min memory usage: " + MemoryWatcher.max
-					+ " / " + MemoryWatcher.min + " kb");
-			System.out.println(failedTransactions + " / " + transactionCount
-					+ " failed to complete.");
-			System.out.println("Transaction rate: "
-					+ (transactionCount - failedTransactions)
-					/ completion_time + " txn/sec.");
+	/*
+	 * Everything measured starts here: telemetry, the flight recording, the
+	 * monitors and the clock, and last the new counters, which is what tells
+	 * the clients to reset their statistics. Returns the progress thread of
+	 * the measured phase.
+	 */
+	private ProgressThread beginMeasurement(Recording recording, Connection monitorConnection) {
+		telemetry = new Telemetry();
+		if (recording != null) {
+			recording.start();
+		}
+		if (monitorConnection != null) {
+			try {
+				serverMonitor = new ServerMonitor(monitorConnection, TimeUnit.SECONDS.toNanos(progress > 0 ? progress : 1), progress > 0);
+			} catch (SQLException ex) {
+				System.err.println("Not sampling server statistics: " + ex.getMessage());
+			}
+		}
+		startTime = System.nanoTime();
+		if (failover) {
+			failoverMonitor = new FailoverMonitor(startTime, duration > 0 ? duration + 1 : 3600);
 		}
+		if (duration > 0) {
+			runDeadline = startTime + TimeUnit.SECONDS.toNanos(duration);
+		}
+		counters = new Counters(counters.generation + 1);
+		/* always sampling, the interval samples go into the result file */
+		ProgressThread progressThread = new ProgressThread(progress > 0 ? progress : 1, progress > 0, counters, startTime);
+		progressThread.start();
+		if (serverMonitor != null) {
+			serverMonitor.start(startTime);
+		}
+		return progressThread;
 	}
 
-	public synchronized void incrementTransactionCount() {
-		transactionCount++;
+	/*
+	 * Returns once --warmup seconds or transactions have passed and, with
+	 * --steady-state, the throughput of the last STEADY_STATE_INTERVALS
+	 * intervals varies by less than the threshold, or the timeout passed.
+	 */
+	private void awaitWarmup(ProgressThread warmupThread) throws InterruptedException {
+		long begin = System.nanoTime();
+		long steadyDeadline = begin + TimeUnit.SECONDS.toNanos(steadyStateTimeout);
+		double variation = Double.NaN;
+		while (clientsDone.getCount() > 0) {
+			TimeUnit.MILLISECONDS.sleep(10);
+			long now = System.nanoTime();
+			boolean warm = warmupTransactions > 0 ? counters.transactionCount.sum() >= warmupTransactions
+					: now - begin >= TimeUnit.SECONDS.toNanos(warmupSecondsTarget);
+			if (!warm) {
+				continue;
+			}
+			if (steadyState <= 0) {
+				break;
+			}
+			double[] tps = warmupThread.recentTps(STEADY_STATE_INTERVALS);
+			if (tps.length == STEADY_STATE_INTERVALS) {
+				double mean = Statistics.mean(tps);
+				variation = mean > 0 ? 100 * Math.sqrt(Statistics.variance(tps)) / mean : Double.NaN;
+				if (variation < steadyState) {
+					break;
+				}
+			}
+			if (now >= steadyDeadline) {
+				System.out.printf("No steady state within %d s (throughput varies %.1f%%), measuring anyway%n", steadyStateTimeout, variation);
+				break;
+			}
+			/* the next interval sample is at least a second away */
+			TimeUnit.MILLISECONDS.sleep(100);
+		}
+		warmupSeconds = (System.nanoTime() - begin) / 1E9;
+		System.out.printf("Warm-up done after %.1f s and %d transactions%s, resetting statistics%n", warmupSeconds,
+				counters.transactionCount.sum(), Double.isNaN(variation) ? "" : String.format(" (throughput varies %.1f%%)", variation));
 	}
 
-	public synchronized void incrementFailedTransactionCount() {
-		failedTransactions++;
+	/*
+	 * Starts the clients on the configured executor. Every client keeps its own
+	 * connection and statistics whatever it runs on. Returns the pool when the
+	 * clients are multiplexed so it can be shut down once they are done.
+	 */
+	private ExecutorService startClients(List<ClientThread> clients) {
+		if (executorThreads > 0) {
+			System.out.println("Starting " + clients.size() + " clients on a pool of " + executorThreads + " threads");
+			ScheduledExecutorService pool = Executors.newScheduledThreadPool(executorThreads);
+			for (ClientThread client : clients) {
+				client.multiplex(pool);
+			}
+			return pool;
+		}
+
+		Thread.Builder builder = executor.equals("virtual") ? Thread.ofVirtual() : Thread.ofPlatform();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (ClientThread client : clients) {
+			threads.add(builder.name("client-" + client.clientid).unstarted(client));
+		}
+		for (int i = 0; i < threads.size(); i++) {
+			System.out.println("Starting client " + (i + 1));
+			threads.get(i).start();
+		}
+		return null;
 	}
 
-	void runInitSteps(List <InitSteps> initSteps ) throws SQLException {
+	private QueryUtils newQueryUtils() {
+		return new QueryUtils(false, protocol != Protocol.SIMPLE, protocol == Protocol.BINARY);
+	}
 
+	/*
+	 * Reports what the driver actually runs with, which can differ from what
+	 * was asked for, e.g. when a service file overrides the properties.
+	 */
+	private String describeConnectionProtocol(Connection con) {
+		try {
+			PGConnection pgConnection = con.unwrap(PGConnection.class);
+			return "preferQueryMode=" + pgConnection.getPreferQueryMode().value()
+					+ ", prepareThreshold=" + pgConnection.getPrepareThreshold()
+					+ ", binaryTransfer=" + describeBinaryTransfer(con);
+		} catch (SQLException ex) {
+			return "unknown (" + ex.getMessage() + ")";
+		}
 	}
+
 	/*
-	 * createDatabase() - Creates and Initializes a scaled database.
+	 * Asks the live connection whether int4, the type the benchmark reads
+	 * and binds, goes over the wire in binary. Falls back to the requested
+	 * setting when the driver internals are not reachable.
 	 */
+	private String describeBinaryTransfer(Connection con) throws SQLException {
+		if (!con.isWrapperFor(BaseConnection.class))
+			return connectionProps.getProperty("binaryTransfer") + " (requested)";
+		BaseConnection baseConnection = con.unwrap(BaseConnection.class);
+		boolean send = baseConnection.binaryTransferSend(Oid.INT4);
+		QueryExecutor executor = baseConnection.getQueryExecutor();
+		if (!(executor instanceof QueryExecutorBase))
+			return send + " (send only known)";
+		boolean receive = ((QueryExecutorBase) executor).useBinaryForReceive(Oid.INT4);
+		if (send == receive)
+			return String.valueOf(send);
+		return receive ? "receive only" : "send only";
+	}
 
-	void dropTables( Connection con ) throws  SQLException {
-		try (Statement stmt = con.createStatement()) {
-			stmt.execute("drop table if exists "
-					+ "pgbench_accounts, "
-					+ "pgbench_branches, "
-					+ "pgbench_history, "
-					+ "pgbench_tellers");
-		}
+	private String protocolDescription() {
+		return protocol.getName() + (pipeline && !selectOnly ? ", pipelined" : "")
+				+ (effectiveProtocol != null ? " (" + effectiveProtocol + ")" : "");
 	}
-	void initTruncateTables(Connection con) throws SQLException
-	{
-		try ( Statement stmt = con.createStatement() ) {
-			stmt.execute("truncate table "
-					+ "pgbench_accounts, "
-					+ "pgbench_branches, "
-					+ "pgbench_history, "
-					+ "pgbench_tellers");
+
+	public void reportDone(ClientThread client) {
+		synchronized (latency) {
+			latency.add(client.latency);
+			if (client.scheduleLag != null) {
+				scheduleLag.add(client.scheduleLag);
+			}
+			if (client.connectLatency != null) {
+				connectLatency.add(client.connectLatency);
+			}
+			if (client.poolWait != null) {
+				poolWait.add(client.poolWait);
+			}
+			clientAllocatedBytes += client.allocatedBytes;
+			clientAllocationSamples += client.allocationSamples;
+			clientCpuNanos += client.cpuNanos;
+			clientCpuSamples += client.cpuSamples;
+			if (hostLatency != null) {
+				for (int i = 0; i < hostLatency.length; i++) {
+					hostLatency[i].add(client.hostLatency[i]);
+					hostFailures[i] += client.hostFailures[i];
+				}
+			}
+			if (reportPerCommand) {
+				for (int i = 0; i < statementLatency.length; i++) {
+					statementLatency[i].add(client.statementLatency[i]);
+					statementFailures[i] += client.statementFailures[i];
+				}
+			}
 		}
+		clientsDone.countDown();
 	}
-	void initCreatePKeys(Connection con) throws SQLException
-	{
-		final String[] DDL_INDEXES = {
-				"alter table pgbench_branches add primary key (bid)",
-				"alter table pgbench_tellers add primary key (tid)",
-				"alter table pgbench_accounts add primary key (aid)"
-		};
 
-		try ( Statement stmt = con.createStatement() ) {
-			for ( int i=0; i< DDL_INDEXES.length; i++ ) {
-				stmt.execute(DDL_INDEXES[i]);
+	private void printReport() {
+		endTime = System.nanoTime();
+		double completion_time = ((double) endTime - (double) startTime) / 1E9;
+		long transactions = counters.transactionCount.sum();
+		long failed = counters.failedTransactions.sum();
+		System.out.println("* Benchmark finished *");
+		System.out.println("\n* Benchmark Report *");
+		System.out.println("--------------------\n");
+		System.out.println("Protocol: " + protocolDescription());
+		System.out.println("Time to execute " + transactions
+				+ " transactions: " + completion_time + " seconds.");
+		System.out.println(failed + " / " + transactions
+				+ " failed to complete.");
+		System.out.println("Transaction rate: "
+				+ (transactions - failed)
+				/ completion_time + " txn/sec.");
+		if (latencyLimit > 0) {
+			System.out.println("Transactions above the " + latencyLimit + " ms latency limit: "
+					+ counters.lateTransactions.sum() + " late, " + counters.skippedTransactions.sum() + " skipped.");
+		}
+		long serialization = counters.serializationFailures.sum();
+		long deadlocks = counters.deadlockFailures.sum();
+		if (maxTries != 1 || serialization + deadlocks > 0) {
+			System.out.println("Retries: " + counters.retries.sum() + " in " + counters.retriedTransactions.sum() + " transactions, "
+					+ counters.retriedSucceeded.sum() + " of them succeeded on a retry.");
+			System.out.println("Failed: " + serialization + " serialization failures, " + deadlocks + " deadlocks, "
+					+ (failed - serialization - deadlocks) + " other.");
+		}
+		synchronized (latency) {
+			printLatency("Latency", latency);
+			if (connectPerTransaction) {
+				printLatency("Connection setup latency", connectLatency);
 			}
+			if (connectionPool != null) {
+				printLatency("Pool wait", poolWait);
+			}
+			if (rate > 0) {
+				System.out.printf("Rate limit schedule lag: avg %.3f ms, max %.3f ms%n",
+						scheduleLag.getMean() / 1000.0, scheduleLag.getMax() / 1000.0);
+			}
+			if (reportPerCommand) {
+				printStatementLatency();
+			}
+			if (hostLatency != null) {
+				printHostLatency(completion_time);
+			}
+			printTelemetry();
+		}
+		if (failoverMonitor != null) {
+			printFailover();
 		}
 	}
 
-	void initCreateFKeys(Connection con) throws SQLException
-	{
-		final String[] DDL_KEYS = {
-				"alter table pgbench_tellers add constraint pgbench_tellers_bid_fkey foreign key (bid) references pgbench_branches",
-				"alter table pgbench_accounts add constraint pgbench_accounts_bid_fkey foreign key (bid) references pgbench_branches",
-				"alter table pgbench_history add constraint pgbench_history_bid_fkey foreign key (bid) references pgbench_branches",
-				"alter table pgbench_history add constraint pgbench_history_tid_fkey foreign key (tid) references pgbench_tellers",
-				"alter table pgbench_history add constraint pgbench_history_aid_fkey foreign key (aid) references pgbench_accounts"		};
-
-		try ( Statement stmt = con.createStatement() ) {
-			for ( int i=0; i< DDL_KEYS.length; i++ ) {
-				stmt.execute(DDL_KEYS[i]);
+	/*
+	 * The client and server side of every interval on one line, to see what
+	 * the server was doing when the throughput dropped.
+	 */
+	private void printServerStats(ProgressThread progressThread) {
+		List<ServerMonitor.Sample> samples = serverMonitor.getSamples();
+		System.out.println("Server statistics per " + progressThread.seconds + " s interval:");
+		System.out.printf("  %8s %10s %8s %10s %10s %7s %8s %9s %5s %8s  %s%n", "time s", "tps", "lat ms", "commits/s", "rollback/s",
+				"hit %", "reads/s", "WAL MB/s", "ckpt", "stmt ms", "active sessions by wait event");
+		for (int i = 0; i < samples.size(); i++) {
+			ServerMonitor.Sample sample = samples.get(i);
+			boolean client = i < progressThread.intervalTps.size();
+			System.out.printf("  %8.1f %10.1f %8.3f %10.1f %10.1f %7.2f %8.1f %9.2f %5d %8.3f  %s%n", sample.seconds,
+					client ? progressThread.intervalTps.get(i) : Double.NaN, client ? progressThread.intervalLatency.get(i) : Double.NaN,
+					sample.commits, sample.rollbacks, sample.hitRatio * 100, sample.blocksRead, sample.walBytes / 1048576.0,
+					sample.checkpoints, sample.statementMillis, sample.topWaits(4));
+		}
+		List<ServerMonitor.StatementStats> top = serverMonitor.getTopStatements(5);
+		if (!top.isEmpty()) {
+			System.out.println("Top statements by server time:");
+			for (ServerMonitor.StatementStats statement : top) {
+				String query = statement.query.replaceAll("\\s+", " ");
+				System.out.printf("  %10.3f s %10d calls %8.3f ms  %s%n", statement.totalMillis / 1000.0, statement.calls,
+						statement.totalMillis / statement.calls, query.length() > 70 ? query.substring(0, 67) + "..." : query);
 			}
 		}
-	}
-	private class PgColumn {
-		String name;
-		String type;
-		PgColumn (String name, String type) {
-			this.name = name;
-			this.type = type;
+		for (String note : serverMonitor.getNotes()) {
+			System.out.println("Not sampled: " + note);
 		}
 	}
-	private class DDLInfo {
-		String tableName;
-		List <PgColumn> columnList;
-		DDLInfo( String tableName ) {
-			this.tableName = tableName;
+
+	private void printFailover() {
+		List<FailoverMonitor.Event> events = failoverMonitor.getEvents();
+		long[] perSecond = failoverMonitor.getSuccessesPerSecond(endTime);
+		System.out.println("Failover: " + events.size() + (events.size() == 1 ? " event" : " events"));
+		for (FailoverMonitor.Event event : events) {
+			StringBuilder kinds = new StringBuilder();
+			for (FailoverMonitor.Failure failure : FailoverMonitor.Failure.values()) {
+				if (event.getCount(failure) > 0) {
+					kinds.append(kinds.length() > 0 ? ", " : "").append(failure.getLabel()).append(' ').append(event.getCount(failure));
+				}
+			}
+			System.out.printf("  at %.3f s: %d failed (%s)%n", event.getStartSeconds(), event.getFailed(), kinds);
+			double firstSuccess = event.getTimeToFirstSuccess();
+			System.out.println(firstSuccess < 0 ? "    no successful transaction afterwards"
+					: String.format("    time to first success: %.3f s", firstSuccess));
+			double baseline = event.getBaselineTps(perSecond);
+			double full = failoverMonitor.timeToFullThroughput(event, perSecond, FULL_THROUGHPUT);
+			if (baseline <= 0) {
+				System.out.println("    time to full throughput: no throughput before the event to compare with");
+			} else if (full < 0) {
+				System.out.printf("    time to full throughput: not reached %.0f%% of %.1f tps%n", FULL_THROUGHPUT * 100, baseline);
+			} else {
+				System.out.printf("    time to full throughput: %.3f s (%.0f%% of %.1f tps)%n", full, FULL_THROUGHPUT * 100, baseline);
+			}
+			/* a few seconds either side of the outage */
+			int from = Math.max(0, event.getStartSecond() - 3);
+			int to = Math.min(perSecond.length, Math.max(event.getStartSecond(), event.getRecoverySecond()) + 4);
+			StringBuilder line = new StringBuilder("    tps per second:");
+			for (int second = from; second < to; second++) {
+				line.append(' ').append(second).append(':').append(perSecond[second]);
+			}
+			System.out.println(line);
+		}
+	}
+
+	/*
+	 * The cost of the load generator itself, to tell when it rather than the
+	 * database limits the results.
+	 */
+	private void printTelemetry() {
+		if (clientAllocationSamples > 0) {
+			System.out.printf("Client allocation: %.1f KB per transaction%n", clientAllocatedBytes / 1024.0 / clientAllocationSamples);
+		}
+		if (clientCpuSamples > 0) {
+			System.out.printf("Client CPU time: %.1f us per transaction%n", clientCpuNanos / 1000.0 / clientCpuSamples);
+		}
+		if (clientAllocationSamples == 0 && clientCpuSamples == 0) {
+			System.out.println("Client allocation and CPU time: not measurable on " + executor + " threads");
+		}
+		System.out.printf("Process CPU time: %.2f s, %.2f cores busy on average%n",
+				telemetry.getProcessCpuNanos() / 1E9, telemetry.getProcessCpuLoad());
+		System.out.printf("GC: %d collections, %d ms %s%n", telemetry.getCollectionCount(),
+				telemetry.getCollectionMillis(), telemetry.getCollectors());
+		System.out.printf("GC pauses: %d, %d ms, %.2f%% of wall time%n", telemetry.getPauseCount(),
+				telemetry.getPauseMillis(), 100 * telemetry.getPauseShare());
+		System.out.printf("Heap used: min %.1f MB, max %.1f MB%n", telemetry.getHeapMin() / 1048576.0, telemetry.getHeapMax() / 1048576.0);
+		StringBuilder peaks = new StringBuilder();
+		for (Map.Entry<String, Long> pool : telemetry.getHeapPoolPeaks().entrySet()) {
+			peaks.append(peaks.length() > 0 ? ", " : "").append(pool.getKey()).append(String.format(" %.1f MB", pool.getValue() / 1048576.0));
+		}
+		System.out.println("Heap pool peaks: " + peaks);
+		if (telemetry.getPauseShare() > 0.05) {
+			System.out.println("WARNING: the benchmark was paused for garbage collection more than 5% of the run, latencies include client side GC pauses");
+		}
+		if (telemetry.getProcessCpuLoad() > 0.9 * Runtime.getRuntime().availableProcessors()) {
+			System.out.println("WARNING: the benchmark process kept nearly all cores busy, it may be limiting the throughput");
+		}
+	}
+
+	private void printStatementLatency() {
+		System.out.println("Statement latencies in milliseconds and failures:");
+		System.out.printf("%10s %10s %10s %10s  %s%n", "average", "p99", "max", "failures", "statement");
+		for (TpcbStatement statement : TpcbStatement.values()) {
+			LatencyHistogram histogram = statementLatency[statement.ordinal()];
+			long failures = statementFailures[statement.ordinal()];
+			if (histogram.getTotalCount() == 0 && failures == 0) {
+				continue;
+			}
+			System.out.printf("%10.3f %10.3f %10.3f %10d  %s%n", histogram.getMean() / 1000.0,
+					histogram.getValueAtPercentile(99) / 1000.0, histogram.getMax() / 1000.0,
+					failures, statement.label);
+		}
+	}
+
+	private void printHostLatency(double seconds) {
+		System.out.println("Per host:");
+		for (int i = 0; i < hostLatency.length; i++) {
+			LatencyHistogram histogram = hostLatency[i];
+			System.out.printf("  %-30s %10d txn %10.1f tps  avg %.3f ms  p99 %.3f ms  %d failed%n",
+					hostLabels.get(i) + (i == 0 ? " (primary)" : ""), histogram.getTotalCount(), histogram.getTotalCount() / seconds,
+					histogram.getMean() / 1000.0, histogram.getValueAtPercentile(99) / 1000.0, hostFailures[i]);
+		}
+	}
+
+	private LatencyHistogram[] newHostHistograms() {
+		LatencyHistogram[] histograms = new LatencyHistogram[hostLabels.size()];
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = new LatencyHistogram();
+		}
+		return histograms;
+	}
+
+	private LatencyHistogram[] newStatementHistograms() {
+		LatencyHistogram[] histograms = new LatencyHistogram[TpcbStatement.values().length];
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = new LatencyHistogram();
+		}
+		return histograms;
+	}
+
+	/*
+	 * The machine readable counterpart of printReport(), see ResultFile.
+	 */
+	private void writeResult(ProgressThread progressThread) {
+		double elapsed = (endTime - startTime) / 1E9;
+		long transactions = counters.transactionCount.sum();
+		long failed = counters.failedTransactions.sum();
+
+		Map<String, Object> config = new LinkedHashMap<>();
+		config.put("url", dbUrl);
+		config.put("clients", numClients);
+		config.put("scale", scale);
+		config.put("protocol", protocol.getName());
+		config.put("executor", executor);
+		config.put("duration_s", duration);
+		config.put("transactions_per_client", duration > 0 ? 0 : transactionsPerClient);
+		config.put("rate", rate);
+		config.put("latency_limit_ms", latencyLimit);
+		config.put("mode", transactionMode());
+		StringBuilder scriptNames = new StringBuilder();
+		for (Script script : scripts) {
+			scriptNames.append(scriptNames.length() > 0 ? " " : "").append(script.getName()).append('@').append(script.getWeight());
+		}
+		config.put("scripts", scriptNames.toString());
+		config.put("connection", connectPerTransaction ? "per-transaction" : poolSize > 0 ? "pool:" + poolSize : "per-client");
+		config.put("distribution", distribution);
+		config.put("failover", failover);
+		config.put("isolation", isolation != null ? isolation.name() : "default");
+		config.put("max_tries", maxTries);
+		config.put("warmup", warmup != null ? warmup : "");
+		config.put("steady_state", steadyState);
+
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("timestamp", Instant.now().toString());
+		result.put("config", config);
+		result.put("effective_protocol", effectiveProtocol);
+		result.put("transactions", transactions);
+		result.put("failed", failed);
+		result.put("skipped", counters.skippedTransactions.sum());
+		result.put("late", counters.lateTransactions.sum());
+		result.put("retries", counters.retries.sum());
+		result.put("retried", counters.retriedTransactions.sum());
+		result.put("retried_succeeded", counters.retriedSucceeded.sum());
+		result.put("failed_serialization", counters.serializationFailures.sum());
+		result.put("failed_deadlock", counters.deadlockFailures.sum());
+		result.put("warmup_s", warmupSeconds);
+		result.put("elapsed_s", elapsed);
+		result.put("tps", (transactions - failed) / elapsed);
+		synchronized (latency) {
+			Map<String, Object> percentiles = new LinkedHashMap<>();
+			percentiles.put("avg_ms", latency.getMean() / 1000.0);
+			percentiles.put("p50_ms", latency.getValueAtPercentile(50) / 1000.0);
+			percentiles.put("p90_ms", latency.getValueAtPercentile(90) / 1000.0);
+			percentiles.put("p99_ms", latency.getValueAtPercentile(99) / 1000.0);
+			percentiles.put("p999_ms", latency.getValueAtPercentile(99.9) / 1000.0);
+			percentiles.put("max_ms", latency.getMax() / 1000.0);
+			result.put("latency", percentiles);
+		}
+		Map<String, Object> client = new LinkedHashMap<>();
+		synchronized (latency) {
+			client.put("allocated_bytes_per_transaction", clientAllocationSamples > 0 ? (double) clientAllocatedBytes / clientAllocationSamples : null);
+			client.put("cpu_us_per_transaction", clientCpuSamples > 0 ? clientCpuNanos / 1000.0 / clientCpuSamples : null);
+		}
+		client.put("process_cpu_s", telemetry.getProcessCpuNanos() / 1E9);
+		client.put("gc_collections", telemetry.getCollectionCount());
+		client.put("gc_ms", telemetry.getCollectionMillis());
+		client.put("gc_pauses", telemetry.getPauseCount());
+		client.put("gc_pause_ms", telemetry.getPauseMillis());
+		client.put("gc_pause_share", telemetry.getPauseShare());
+		client.put("heap_min_bytes", telemetry.getHeapMin());
+		client.put("heap_max_bytes", telemetry.getHeapMax());
+		result.put("client", client);
+		if (hostLatency != null) {
+			Map<String, Object> hosts = new LinkedHashMap<>();
+			synchronized (latency) {
+				for (int i = 0; i < hostLatency.length; i++) {
+					Map<String, Object> stats = new LinkedHashMap<>();
+					stats.put("role", i == 0 ? "primary" : "read");
+					stats.put("tps", hostLatency[i].getTotalCount() / elapsed);
+					stats.put("avg_ms", hostLatency[i].getMean() / 1000.0);
+					stats.put("p99_ms", hostLatency[i].getValueAtPercentile(99) / 1000.0);
+					stats.put("failed", hostFailures[i]);
+					hosts.put(hostLabels.get(i), stats);
+				}
+			}
+			result.put("hosts", hosts);
+		}
+		if (failoverMonitor != null) {
+			Map<String, Object> failovers = new LinkedHashMap<>();
+			List<FailoverMonitor.Event> events = failoverMonitor.getEvents();
+			long[] perSecond = failoverMonitor.getSuccessesPerSecond(endTime);
+			failovers.put("events", events.size());
+			for (int i = 0; i < events.size(); i++) {
+				FailoverMonitor.Event event = events.get(i);
+				double firstSuccess = event.getTimeToFirstSuccess();
+				double full = failoverMonitor.timeToFullThroughput(event, perSecond, FULL_THROUGHPUT);
+				Map<String, Object> stats = new LinkedHashMap<>();
+				stats.put("start_s", event.getStartSeconds());
+				stats.put("failed", event.getFailed());
+				for (FailoverMonitor.Failure failure : FailoverMonitor.Failure.values()) {
+					stats.put(failure.name().toLowerCase(), event.getCount(failure));
+				}
+				stats.put("baseline_tps", event.getBaselineTps(perSecond));
+				stats.put("time_to_first_success_s", firstSuccess < 0 ? null : firstSuccess);
+				stats.put("time_to_full_throughput_s", full < 0 ? null : full);
+				failovers.put("event" + (i + 1), stats);
+			}
+			List<Long> tps = new ArrayList<>();
+			for (long count : perSecond) {
+				tps.add(count);
+			}
+			failovers.put("tps_per_second", tps);
+			result.put("failover", failovers);
+		}
+		if (serverMonitor != null) {
+			Map<String, Object> server = new LinkedHashMap<>();
+			List<Double> commits = new ArrayList<>();
+			List<Double> blocksRead = new ArrayList<>();
+			List<Double> walBytes = new ArrayList<>();
+			List<Long> checkpoints = new ArrayList<>();
+			List<Double> statementMillis = new ArrayList<>();
+			List<Double> lockWaits = new ArrayList<>();
+			List<Double> ioWaits = new ArrayList<>();
+			for (ServerMonitor.Sample sample : serverMonitor.getSamples()) {
+				commits.add(sample.commits);
+				blocksRead.add(sample.blocksRead);
+				walBytes.add(sample.walBytes);
+				checkpoints.add(sample.checkpoints);
+				statementMillis.add(Double.isNaN(sample.statementMillis) ? 0 : sample.statementMillis);
+				lockWaits.add(sample.waits.getOrDefault("Lock", 0.0) + sample.waits.getOrDefault("LWLock", 0.0));
+				ioWaits.add(sample.waits.getOrDefault("IO", 0.0));
+			}
+			server.put("commits_per_s", commits);
+			server.put("blocks_read_per_s", blocksRead);
+			server.put("wal_bytes_per_s", walBytes);
+			server.put("checkpoints", checkpoints);
+			server.put("statement_ms", statementMillis);
+			server.put("lock_waits", lockWaits);
+			server.put("io_waits", ioWaits);
+			result.put("server", server);
+		}
+		Map<String, Object> intervals = new LinkedHashMap<>();
+		intervals.put("seconds", progressThread.seconds);
+		intervals.put("tps", progressThread.intervalTps);
+		intervals.put("latency_ms", progressThread.intervalLatency);
+		result.put("intervals", intervals);
+
+		try {
+			ResultFile.write(resultFile, result);
+			System.out.println("Results written to " + resultFile);
+		} catch (IOException ex) {
+			System.err.println("Could not write " + resultFile + ": " + ex.getMessage());
+		}
+	}
+
+	private void sendResult() {
+		WorkerLink link = workerLink;
+		try {
+			synchronized (latency) {
+				link.done(counters.transactionCount.sum(), counters.failedTransactions.sum(), counters.skippedTransactions.sum(), counters.lateTransactions.sum(),
+						(endTime - startTime) / 1E9, latency);
+			}
+			link.close();
+		} catch (IOException ex) {
+			System.err.println("Could not send the results to the coordinator: " + ex.getMessage());
+		}
+	}
+
+	/* called by the progress thread, a coordinator that went away is not fatal */
+	private void sendInterval(int index, double seconds, long succeeded, long failed, long latencySum) {
+		WorkerLink link = workerLink;
+		try {
+			link.interval(index, seconds, succeeded, failed, latencySum);
+		} catch (IOException ex) {
+			System.err.println("Lost the coordinator: " + ex.getMessage());
+			workerLink = null;
+		}
+	}
+
+	private String transactionMode() {
+		return !scripts.isEmpty() ? "script" : selectOnly ? "select-only" : pipeline ? "tpcb-pipelined" : "tpcb";
+	}
+
+	private void printLatency(String label, LatencyHistogram histogram) {
+		System.out.printf("%s average: %.3f ms%n", label, histogram.getMean() / 1000.0);
+		System.out.printf("%s percentiles: p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms%n", label,
+				histogram.getValueAtPercentile(50) / 1000.0,
+				histogram.getValueAtPercentile(90) / 1000.0,
+				histogram.getValueAtPercentile(99) / 1000.0,
+				histogram.getValueAtPercentile(99.9) / 1000.0,
+				histogram.getMax() / 1000.0);
+	}
+
+	void runInitSteps(List <InitSteps> initSteps ) throws SQLException {
+
+	}
+	/*
+	 * createDatabase() - Creates and Initializes a scaled database.
+	 */
+
+	void dropTables( Connection con ) throws  SQLException {
+		try (Statement stmt = con.createStatement()) {
+			stmt.execute("drop table if exists "
+					+ "pgbench_accounts, "
+					+ "pgbench_branches, "
+					+ "pgbench_history, "
+					+ "pgbench_tellers");
+		}
+	}
+	void initTruncateTables(Connection con) throws SQLException
+	{
+		try ( Statement stmt = con.createStatement() ) {
+			stmt.execute("truncate table "
+					+ "pgbench_accounts, "
+					+ "pgbench_branches, "
+					+ "pgbench_history, "
+					+ "pgbench_tellers");
+		}
+	}
+	void initCreatePKeys(Connection con) throws SQLException
+	{
+		final String[] DDL_INDEXES = {
+				"alter table pgbench_branches add primary key (bid)",
+				"alter table pgbench_tellers add primary key (tid)",
+				"alter table pgbench_accounts add primary key (aid)"
+		};
+
+		try ( Statement stmt = con.createStatement() ) {
+			for ( int i=0; i< DDL_INDEXES.length; i++ ) {
+				stmt.execute(DDL_INDEXES[i]);
+			}
+		}
+	}
+
+	void initCreateFKeys(Connection con) throws SQLException
+	{
+		final String[] DDL_KEYS = {
+				"alter table pgbench_tellers add constraint pgbench_tellers_bid_fkey foreign key (bid) references pgbench_branches",
+				"alter table pgbench_accounts add constraint pgbench_accounts_bid_fkey foreign key (bid) references pgbench_branches",
+				"alter table pgbench_history add constraint pgbench_history_bid_fkey foreign key (bid) references pgbench_branches",
+				"alter table pgbench_history add constraint pgbench_history_tid_fkey foreign key (tid) references pgbench_tellers",
+				"alter table pgbench_history add constraint pgbench_history_aid_fkey foreign key (aid) references pgbench_accounts"		};
+
+		try ( Statement stmt = con.createStatement() ) {
+			for ( int i=0; i< DDL_KEYS.length; i++ ) {
+				stmt.execute(DDL_KEYS[i]);
+			}
+		}
+	}
+	private class PgColumn {
+		String name;
+		String type;
+		PgColumn (String name, String type) {
+			this.name = name;
+			this.type = type;
+		}
+	}
+	private class DDLInfo {
+		String tableName;
+		List <PgColumn> columnList;
+		DDLInfo( String tableName ) {
+			this.tableName = tableName;
 			columnList = new ArrayList<>();
 		}
 		DDLInfo addColumn(PgColumn pgColumn) {
@@ -482,13 +1597,126 @@ public class JDBCBench implements Callable <Integer> {
 			ex.printStackTrace();
 		}
 
-		try {
-			// do this in a transaction to enable backend's data loading optimizations
-			conn.setAutoCommit(false);
-		} catch (SQLException ex ){
+		InitPartition[] partitions = new InitPartition[initJobs];
+		for (int i = 0; i < initJobs; i++) {
+			partitions[i] = new InitPartition(i, initJobs);
+		}
 
+		long loadStart = System.nanoTime();
+		if (initJobs == 1) {
+			try {
+				loadPartition(conn, partitions[0]);
+			} catch (Exception ex) {
+				partitions[0].failed = true;
+				System.err.println(ex.getMessage());
+				ex.printStackTrace();
+			}
+		} else {
+			List<LoaderThread> loaders = new ArrayList<>();
+			for (InitPartition partition : partitions) {
+				LoaderThread loader = new LoaderThread(partition);
+				loaders.add(loader);
+				loader.start();
+			}
+			for (LoaderThread loader : loaders) {
+				try {
+					loader.join();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+		double loadSeconds = (System.nanoTime() - loadStart) / 1E9;
+
+		long totalRows = 0;
+		System.out.println();
+		for (InitPartition partition : partitions) {
+			totalRows += partition.rows();
+			if (initJobs > 1) {
+				System.out.printf("partition %d: %d rows in %.3f s, %.0f rows/sec%s%n",
+						partition.index, partition.rows(), partition.nanos / 1E9,
+						partition.rows() / (partition.nanos / 1E9),
+						partition.failed ? " (failed)" : "");
+			}
+		}
+		System.out.printf("loaded %d rows in %.3f s, %.0f rows/sec%n", totalRows, loadSeconds, totalRows / loadSeconds);
+
+	} /* end of CreateDatabase */
+
+	/*
+	 * A slice of the branch, teller and account key ranges. The ranges are
+	 * split independently so every partition gets a near equal share of each
+	 * table, even when there are more partitions than branches.
+	 */
+	static class InitPartition {
+		final int index;
+		final int branchFrom, branchTo;
+		final int tellerFrom, tellerTo;
+		final int accountFrom, accountTo;
+		long nanos;
+		boolean failed;
+
+		InitPartition(int index, int partitions) {
+			this.index = index;
+			branchFrom = split(numBranches * scale, partitions, index);
+			branchTo = split(numBranches * scale, partitions, index + 1);
+			tellerFrom = split(numTellers * scale, partitions, index);
+			tellerTo = split(numTellers * scale, partitions, index + 1);
+			accountFrom = split(numAccounts * scale, partitions, index);
+			accountTo = split(numAccounts * scale, partitions, index + 1);
+		}
+
+		private static int split(int total, int partitions, int index) {
+			return (int) ((long) total * index / partitions);
+		}
+
+		long rows() {
+			return (long) (branchTo - branchFrom) + (tellerTo - tellerFrom) + (accountTo - accountFrom);
+		}
+	}
+
+	/*
+	 * Loads one partition in a single transaction. The connection is handed
+	 * back in autocommit mode, rolled back if the load failed, since with a
+	 * single init job it is the one the run goes on to use.
+	 */
+	void loadPartition(Connection conn, InitPartition partition) throws SQLException {
+		long start = System.nanoTime();
+		boolean autocommit = conn.getAutoCommit();
+		boolean committed = false;
+		// do this in a transaction to enable backend's data loading optimizations
+		conn.setAutoCommit(false);
+		try {
+			switch (initMethod) {
+				case COPY:
+					copyRows(conn, partition);
+					break;
+				case SERVER:
+					generateRows(conn, partition);
+					break;
+				default:
+					insertRows(conn, partition);
+			}
+			conn.commit();
+			committed = true;
+			partition.nanos = System.nanoTime() - start;
+		} finally {
+			try {
+				if (!committed) {
+					conn.rollback();
+				}
+				conn.setAutoCommit(autocommit);
+			} catch (SQLException ex) {
+				/* keep the load failure, not the cleanup one */
+				if (committed) {
+					throw ex;
+				}
+			}
 		}
+	}
 
+	private void insertRows(Connection conn, InitPartition partition) throws SQLException {
 		try ( PreparedStatement pstmt = conn.prepareStatement("INSERT INTO pgbench_branches(bid,bbalance) VALUES (?,?)") ) {
 			/*
 			 * prime database using TPC BM B scaling rules. Note that for each
@@ -496,44 +1724,100 @@ public class JDBCBench implements Callable <Integer> {
 			 * account_id / naccounts
 			 */
 			pstmt.setInt(2, 0);
-			for (int i = 0; i < numBranches * scale; i++) {
+			for (int i = partition.branchFrom; i < partition.branchTo; i++) {
 				pstmt.setInt(1, i);
 				pstmt.executeUpdate();
 				pstmt.clearWarnings();
 			}
-		} catch ( SQLException ex ) {
 		}
 
 		try ( PreparedStatement pstmt = conn.prepareStatement("INSERT INTO pgbench_tellers(tid, bid,tbalance) VALUES (?,?,?)") ) {
 			pstmt.setInt(3, 0);
 
-			for (int i = 0; i < numTellers * scale; i++) {
+			for (int i = partition.tellerFrom; i < partition.tellerTo; i++) {
 				pstmt.setInt(1, i);
 				pstmt.setInt(2, i / numTellers );
 				pstmt.executeUpdate();
 				pstmt.clearWarnings();
 			}
-		} catch (SQLException ex ) {
 		}
 		try ( PreparedStatement pstmt = conn.prepareStatement("INSERT INTO pgbench_accounts(aid, bid,abalance) VALUES (?,?,?)") ) {
 			pstmt.setInt(3, 0);
 
-			for (int i = 0; i < numAccounts * scale; i++) {
+			for (int i = partition.accountFrom; i < partition.accountTo; i++) {
 				pstmt.setInt(1, i);
 				pstmt.setInt(2, i/numAccounts );
 				pstmt.executeUpdate();
 				pstmt.clearWarnings();
 			}
-		} catch ( SQLException ex) {
 		}
-		try {
-			conn.commit();
-		} catch (Exception ex) {
-			System.err.println(ex.getMessage());
-			ex.printStackTrace();
+	}
+
+	private void copyRows(Connection conn, InitPartition partition) throws SQLException {
+		CopyManager copyManager = conn.unwrap(PGConnection.class).getCopyAPI();
+
+		CopyRowWriter writer = new CopyRowWriter(copyManager.copyIn("COPY pgbench_branches(bid, bbalance) FROM STDIN"), 65536);
+		for (int i = partition.branchFrom; i < partition.branchTo; i++) {
+			writer.field(i).field(0).endRow();
 		}
+		writer.finish();
 
-	} /* end of CreateDatabase */
+		writer = new CopyRowWriter(copyManager.copyIn("COPY pgbench_tellers(tid, bid, tbalance) FROM STDIN"), 65536);
+		for (int i = partition.tellerFrom; i < partition.tellerTo; i++) {
+			writer.field(i).field(i / numTellers).field(0).endRow();
+		}
+		writer.finish();
+
+		writer = new CopyRowWriter(copyManager.copyIn("COPY pgbench_accounts(aid, bid, abalance) FROM STDIN"), 65536);
+		for (int i = partition.accountFrom; i < partition.accountTo; i++) {
+			writer.field(i).field(i / numAccounts).field(0).endRow();
+		}
+		writer.finish();
+	}
+
+	private void generateRows(Connection conn, InitPartition partition) throws SQLException {
+		final String[] GENERATE = {
+				"INSERT INTO pgbench_branches(bid, bbalance) SELECT bid, 0 FROM generate_series(?, ?) AS bid",
+				"INSERT INTO pgbench_tellers(tid, bid, tbalance) SELECT tid, tid / " + numTellers + ", 0 FROM generate_series(?, ?) AS tid",
+				"INSERT INTO pgbench_accounts(aid, bid, abalance) SELECT aid, aid / " + numAccounts + ", 0 FROM generate_series(?, ?) AS aid"
+		};
+		int[][] ranges = {
+				{partition.branchFrom, partition.branchTo},
+				{partition.tellerFrom, partition.tellerTo},
+				{partition.accountFrom, partition.accountTo}
+		};
+
+		for (int i = 0; i < GENERATE.length; i++) {
+			if (ranges[i][0] >= ranges[i][1]) {
+				continue;
+			}
+			try (PreparedStatement pstmt = conn.prepareStatement(GENERATE[i])) {
+				pstmt.setInt(1, ranges[i][0]);
+				pstmt.setInt(2, ranges[i][1] - 1);
+				pstmt.executeUpdate();
+			}
+		}
+	}
+
+	class LoaderThread extends Thread {
+		final InitPartition partition;
+
+		LoaderThread(InitPartition partition) {
+			this.partition = partition;
+		}
+
+		public void run() {
+			long start = System.nanoTime();
+			try (Connection conn = openConnection(connectionProps)) {
+				loadPartition(conn, partition);
+			} catch (SQLException ex) {
+				partition.failed = true;
+				partition.nanos = System.nanoTime() - start;
+				System.err.println("Error loading partition " + partition.index + ": " + ex.getMessage());
+				ex.printStackTrace();
+			}
+		}
+	}
 
 	private void vacuum( Connection con ) throws SQLException {
 		boolean autocommit = con.getAutoCommit();
@@ -547,127 +1831,718 @@ public class JDBCBench implements Callable <Integer> {
 
 	}
 
-	public static int getRandomInt(int lo, int hi) {
-		int ret;
-
-		ret = (int) (Math.random() * (hi - lo + 1));
-		ret += lo;
-
-		return ret;
+	public static int getRandomInt(RandomGenerator random, int lo, int hi) {
+		return random.nextInt(lo, hi + 1);
 	}
 
-	public static int getRandomID(int type) {
-		int min, max, num;
-
-		min = 0;
-		num = numAccounts;
+	/*
+	 * Draws an id over the whole scaled key range of the given type, following
+	 * the configured --distribution.
+	 */
+	public int getRandomID(RandomGenerator random, int type) {
 		switch (type) {
 			case TELLER:
-				num=numTellers;
-				break;
+				return (int) tellerKeys.next(random);
 			case BRANCH:
-				num = numBranches;
-				break;
-			case ACCOUNT:
-				num = numAccounts;
-				break;
+				return (int) branchKeys.next(random);
+			default:
+				return (int) accountKeys.next(random);
 		}
-		max = min + num - 1;
-		return (getRandomInt(min, max));
 	}
 
-	class ClientThread extends Thread {
+	/*
+	 * A logical client. It is run either on a thread of its own, or one
+	 * transaction at a time by a pool thread through multiplex(). Either way
+	 * only one thread at a time ever steps a client, so its statistics need no
+	 * locking until it reports done.
+	 */
+	class ClientThread implements Runnable {
 		int ntrans;
 		int clientid;
 		Connection connection;
+		final LatencyHistogram latency = new LatencyHistogram();
+		/* only allocated for --rate, --connect and --pool, like the per statement histograms */
+		final LatencyHistogram scheduleLag = rate > 0 ? new LatencyHistogram() : null;
+		final LatencyHistogram connectLatency = connectPerTransaction ? new LatencyHistogram() : null;
+		final LatencyHistogram poolWait = poolSize > 0 ? new LatencyHistogram() : null;
+		/* only allocated with --report-per-command, a histogram per statement adds up over thousands of clients */
+		final LatencyHistogram[] statementLatency = reportPerCommand ? newStatementHistograms() : null;
+		final long[] statementFailures = new long[TpcbStatement.values().length];
+		/* the statement doOne() is running, charged with the failure if it throws */
+		TpcbStatement runningStatement;
+		/* the event of the running statement, null unless a recording takes statement events */
+		StatementEvent statementEvent;
+		final Script.Session[] scriptSessions = new Script.Session[scripts.size()];
+		final SplittableRandom random = seedRandom.split();
+		/* lives as long as the client so statements stay prepared across transactions */
+		final QueryUtils clientQueryUtils = newQueryUtils();
+		/* with --read-hosts a connection and statement cache per read host, opened on first use */
+		final Connection[] readConnections = readUrls != null ? new Connection[readUrls.length] : null;
+		final QueryUtils[] readQueryUtils = readUrls != null ? new QueryUtils[readUrls.length] : null;
+		final LatencyHistogram[] hostLatency = readUrls != null ? newHostHistograms() : null;
+		final long[] hostFailures = readUrls != null ? new long[readUrls.length + 1] : null;
+		int nextReadHost;
+		/* the read host of the running transaction, -1 when it runs on the primary */
+		int readHost = -1;
+		Connection primaryConnection;
+
+		/* the shared counters of the running transaction's phase */
+		Counters stats;
+		final long latencyLimitNanos = (long) (latencyLimit * 1E6);
+		/* mean gap between this client's arrivals, the clients share the aggregate rate */
+		final double meanGapNanos = rate > 0 ? 1E9 * numClients / rate : 0;
+		long scheduled;
+		/* the next arrival has been drawn ahead of step() by a multiplexed client */
+		boolean arrivalDrawn;
+		long transactionNo;
+		/* allocation and CPU time of the transactions, where the JVM can measure them for the thread */
+		long allocatedBytes;
+		long allocationSamples;
+		long cpuNanos;
+		long cpuSamples;
 
 		public ClientThread(int number_of_txns, int id, Connection C) {
 			ntrans = number_of_txns;
 			clientid = id;
 			connection = C;
+			nextReadHost = readUrls != null ? id % readUrls.length : 0;
+			for (int i = 0; i < scriptSessions.length; i++) {
+				scriptSessions[i] = scripts.get(i).newSession(id, scale);
+			}
 		}
 
 		public void run() {
-			while (ntrans-- > 0) {
-				int account = JDBCBench.getRandomID(ACCOUNT);
-				int branch = JDBCBench.getRandomID(BRANCH);
-				int teller = JDBCBench.getRandomID(TELLER);
-				int delta = JDBCBench.getRandomInt(-500, 500);
-                QueryUtils queryUtils = new QueryUtils(false, protocol == Protocol.PREPARED, false);
-                doOne(queryUtils, account, branch, teller, delta);
-				incrementTransactionCount();
+			scheduled = System.nanoTime();
+			try {
+				while (step()) {
+				}
+			} catch (RuntimeException ex) {
+				abort(ex);
+			} finally {
+				finish();
+			}
+		}
+
+		/*
+		 * Runs this client on a shared pool: every task runs one transaction and
+		 * queues the next one behind the other clients' tasks. Under --rate a
+		 * client that is not due yet is scheduled for its arrival rather than
+		 * parking a pool thread the other clients need meanwhile.
+		 */
+		void multiplex(ScheduledExecutorService pool) {
+			scheduled = System.nanoTime();
+			pool.execute(new Runnable() {
+				public void run() {
+					boolean queued = false;
+					try {
+						long delay = delayUntilArrival();
+						if (delay > 0) {
+							pool.schedule(this, delay, TimeUnit.NANOSECONDS);
+							queued = true;
+						} else if (step()) {
+							pool.execute(this);
+							queued = true;
+						}
+					} catch (RuntimeException ex) {
+						abort(ex);
+					} finally {
+						if (!queued) {
+							finish();
+						}
+					}
+				}
+			});
+		}
+
+		/*
+		 * Stops the client after an error that is not a SQLException, e.g. from
+		 * a script expression or the driver, counted as a failed transaction.
+		 * The caller still finishes the client, so the run ends rather than
+		 * waiting for it forever.
+		 */
+		private void abort(RuntimeException ex) {
+			System.err.println("Client " + clientid + " stopped: " + ex);
+			if (verbose) {
+				ex.printStackTrace();
+			}
+			Counters current = stats != null ? stats : counters;
+			current.failedTransactions.increment();
+			current.transactionCount.increment();
+		}
+
+		/*
+		 * Under --rate draws the next arrival unless that was done already and
+		 * returns how long until it is due, or until the run ends if that is
+		 * sooner.
+		 */
+		long delayUntilArrival() {
+			if (rate <= 0) {
+				return 0;
+			}
+			if (!arrivalDrawn) {
+				scheduled += (long) (-Math.log(1.0 - random.nextDouble()) * meanGapNanos);
+				arrivalDrawn = true;
+			}
+			return Math.min(scheduled, runDeadline) - System.nanoTime();
+		}
+
+		/*
+		 * Runs (or skips) the next transaction, returns false once the client is done.
+		 * Serialization failures and deadlocks are rolled back and retried up to
+		 * --max-tries, the latency covers all tries.
+		 */
+		boolean step() {
+			Counters current = counters;
+			if (current != stats) {
+				/* the measured phase started, what was recorded so far was warm-up */
+				stats = current;
+				resetStatistics();
+			}
+			long deadline = runDeadline;
+			if (duration > 0 ? System.nanoTime() >= deadline : stats.isMeasured() && ntrans-- <= 0) {
+				return false;
+			}
+			long start;
+			long lag = -1;
+			if (rate > 0) {
+				/* open loop: arrivals are a Poisson process independent of how long transactions take */
+				delayUntilArrival();
+				arrivalDrawn = false;
+				if (scheduled >= deadline) {
+					return false;
+				}
+				long now;
+				while ((now = System.nanoTime()) < scheduled) {
+					LockSupport.parkNanos(scheduled - now);
+				}
+				lag = (now - scheduled) / 1000;
+				if (latencyLimitNanos > 0 && now - scheduled > latencyLimitNanos) {
+					stats.skippedTransactions.increment();
+					log(transactionNo++, 0, TransactionLog.SKIPPED, 0, now, lag);
+					return true;
+				}
+				scheduleLag.recordValue(lag);
+				start = scheduled;
+			} else {
+				start = System.nanoTime();
+			}
+
+			long allocatedBefore = Telemetry.currentThreadAllocatedBytes();
+			long cpuBefore = Telemetry.currentThreadCpuTime();
+			long number = transactionNo++;
+			TransactionEvent event = TRANSACTION_EVENTS.isEnabled() ? new TransactionEvent() : null;
+			if (event != null) {
+				event.begin();
+			}
+			/* drawn once, a retry repeats the same transaction, scripts replay their draws */
+			int account = getRandomID(random, ACCOUNT);
+			int branch = getRandomID(random, BRANCH);
+			int teller = getRandomID(random, TELLER);
+			int delta = getRandomInt(random, -500, 500);
+			int script = scriptSessions.length > 0 ? pickScript() : 0;
+			int status = TransactionLog.OK;
+			int tries = 0;
+			while (true) {
+				if (tries > 0) {
+					backoff(tries);
+				}
+				try {
+					acquireConnection();
+					QueryUtils queryUtils = readHost >= 0 ? readQueryUtils[readHost]
+							: connectionPool != null ? pooledQueryUtils.get(connection) : clientQueryUtils;
+					if (scriptSessions.length > 0) {
+						doScript(scriptSessions[script], tries > 0);
+					} else {
+						doOne(queryUtils, account, branch, teller, delta);
+					}
+					long elapsedNanos = System.nanoTime() - start;
+					if (latencyLimitNanos > 0 && elapsedNanos > latencyLimitNanos) {
+						stats.lateTransactions.increment();
+					}
+					long elapsed = elapsedNanos / 1000;
+					if (failoverMonitor != null) {
+						failoverMonitor.success(start, start + elapsedNanos);
+					}
+					latency.recordValue(elapsed);
+					stats.recordLatency(elapsed);
+					if (hostLatency != null) {
+						hostLatency[readHost + 1].recordValue(elapsed);
+					}
+					if (tries > 0) {
+						stats.retriedSucceeded.increment();
+					}
+					break;
+				} catch (SQLException ex) {
+					rollback();
+					String state = ex.getSQLState();
+					boolean retryable = "40001".equals(state) || "40P01".equals(state);
+					if (retryable && (maxTries == 0 || tries + 1 < maxTries) && System.nanoTime() < deadline) {
+						if (tries++ == 0) {
+							stats.retriedTransactions.increment();
+						}
+						stats.retries.increment();
+						if (runningStatement != null) {
+							statementFailures[runningStatement.ordinal()]++;
+							commitStatementEvent("retried: " + state);
+						}
+						continue;
+					}
+					if ("40001".equals(state)) {
+						stats.serializationFailures.increment();
+					} else if ("40P01".equals(state)) {
+						stats.deadlockFailures.increment();
+					}
+					status = TransactionLog.FAILED;
+					if (verbose) {
+						System.err.println("Transaction failed: " + ex.getMessage());
+						ex.printStackTrace();
+					}
+					if (runningStatement != null) {
+						statementFailures[runningStatement.ordinal()]++;
+						commitStatementEvent("failed: " + ex.getSQLState());
+					}
+					if (hostFailures != null) {
+						hostFailures[readHost + 1]++;
+					}
+					if (failoverMonitor != null) {
+						recover(ex);
+					}
+					stats.failedTransactions.increment();
+					break;
+				} finally {
+					runningStatement = null;
+					releaseConnection();
+				}
+			}
+			long end = System.nanoTime();
+			log(number, script, status, (end - start) / 1000, end, lag);
+			if (event != null) {
+				event.end();
+				if (event.shouldCommit()) {
+					event.clientId = clientid;
+					event.transaction = number;
+					event.kind = scriptSessions.length > 0 ? scriptSessions[script].getScript().getName() : transactionMode();
+					event.key = account;
+					event.latency = (end - start) / 1000;
+					event.scheduleLag = Math.max(0, lag);
+					event.outcome = status == TransactionLog.OK ? "ok" : "failed";
+					event.commit();
+				}
+			}
+			long allocatedAfter = Telemetry.currentThreadAllocatedBytes();
+			long cpuAfter = Telemetry.currentThreadCpuTime();
+			if (allocatedBefore >= 0 && allocatedAfter >= 0) {
+				allocatedBytes += allocatedAfter - allocatedBefore;
+				allocationSamples++;
+			}
+			if (cpuBefore >= 0 && cpuAfter >= 0) {
+				cpuNanos += cpuAfter - cpuBefore;
+				cpuSamples++;
+			}
+			stats.transactionCount.increment();
+			return true;
+		}
+
+		private void resetStatistics() {
+			latency.reset();
+			if (scheduleLag != null) {
+				scheduleLag.reset();
+			}
+			if (connectLatency != null) {
+				connectLatency.reset();
+			}
+			if (poolWait != null) {
+				poolWait.reset();
+			}
+			if (statementLatency != null) {
+				for (LatencyHistogram histogram : statementLatency) {
+					histogram.reset();
+				}
+			}
+			Arrays.fill(statementFailures, 0);
+			if (hostLatency != null) {
+				for (LatencyHistogram histogram : hostLatency) {
+					histogram.reset();
+				}
+				Arrays.fill(hostFailures, 0);
+			}
+			allocatedBytes = 0;
+			allocationSamples = 0;
+			cpuNanos = 0;
+			cpuSamples = 0;
+		}
+
+		/* hands the transaction to the log writer, subject to --sampling-rate, warm-up transactions are not logged */
+		private void log(long number, int script, int status, long latencyMicros, long endNanos, long lag) {
+			if (transactionLog != null && stats.isMeasured() && (samplingRate >= 1 || random.nextDouble() < samplingRate)) {
+				transactionLog.log(clientid, number, script, status, latencyMicros, endNanos, lag);
+			}
+		}
+
+		/*
+		 * With --connect or --pool the client only holds a connection for the
+		 * duration of a transaction, the time it takes to get one is measured
+		 * separately and is also part of the transaction latency.
+		 */
+		private void acquireConnection() throws SQLException {
+			if (readConnections != null && selectOnly && scriptSessions.length == 0) {
+				primaryConnection = connection;
+				readHost = pickReadHost();
+				readsInFlight[readHost].incrementAndGet();
+				if (readConnections[readHost] == null) {
+					readConnections[readHost] = openConnection(readUrls[readHost], connectionProps);
+					readQueryUtils[readHost] = newQueryUtils();
+				}
+				connection = readConnections[readHost];
+			} else if (connectPerTransaction) {
+				long connectStart = System.nanoTime();
+				connection = openConnection(connectionProps);
+				connectLatency.recordValue((System.nanoTime() - connectStart) / 1000);
+			} else if (connectionPool != null) {
+				long waitStart = System.nanoTime();
+				connection = connectionPool.borrow();
+				poolWait.recordValue((System.nanoTime() - waitStart) / 1000);
+			} else if (connection == null && failoverMonitor != null) {
+				/* lost in a failover, the statement caches follow the new connection */
+				connection = openConnection(connectionProps);
+			}
+		}
+
+		/*
+		 * Leaves no aborted transaction behind on the connection, including the
+		 * ones scripts and --pipeline open with their own BEGIN in autocommit
+		 * mode.
+		 */
+		private void rollback() {
+			if (connection == null) {
+				return;
 			}
+			try {
+				QueryUtils.rollback(connection);
+			} catch (SQLException ex) {
+			}
+		}
+
+		/* randomized exponential backoff before retry number tries, cut short by the deadline */
+		private void backoff(int tries) {
+			long cap = Math.min(RETRY_MAX_NANOS, RETRY_BASE_NANOS << Math.min(tries - 1, 20));
+			long wake = Math.min(System.nanoTime() + random.nextLong(cap), runDeadline);
+			long now;
+			while ((now = System.nanoTime()) < wake) {
+				LockSupport.parkNanos(wake - now);
+			}
+		}
+
+		/*
+		 * With --failover: after the wrapper failed over the connection stays
+		 * usable but statements prepared before it are gone, a lost connection
+		 * is dropped and reopened by the next transaction.
+		 */
+		private void recover(SQLException ex) {
+			FailoverMonitor.Failure failure = FailoverMonitor.classify(ex);
+			failoverMonitor.failure(System.nanoTime(), failure);
+			if (verbose) {
+				System.err.println("Client " + clientid + ": " + failure.getLabel() + " (" + ex.getSQLState() + ")");
+			}
+			switch (failure) {
+				case FAILOVER_SUCCEEDED:
+				case OUTCOME_UNKNOWN:
+					if (readHost >= 0) {
+						readQueryUtils[readHost].reset();
+					} else {
+						clientQueryUtils.reset();
+						for (Script.Session session : scriptSessions) {
+							session.reset();
+						}
+					}
+					break;
+				case CONNECTION_LOST:
+					if (connectPerTransaction) {
+						break;
+					}
+					if (readHost >= 0) {
+						closeQuietly(readConnections[readHost]);
+						readConnections[readHost] = null;
+					} else {
+						closeQuietly(connection);
+						connection = null;
+					}
+					LockSupport.parkNanos(RECONNECT_DELAY_NANOS);
+					break;
+				default:
+			}
+		}
+
+		private void closeQuietly(Connection con) {
+			if (con == null) {
+				return;
+			}
+			try {
+				con.close();
+			} catch (SQLException ex) {
+			}
+		}
+
+		private void releaseConnection() {
+			if (readHost >= 0) {
+				readsInFlight[readHost].decrementAndGet();
+				connection = primaryConnection;
+				readHost = -1;
+				return;
+			}
+			if (connection == null) {
+				return;
+			}
+			if (connectPerTransaction) {
+				try {
+					connection.close();
+				} catch (SQLException ex) {
+				}
+				connection = null;
+			} else if (connectionPool != null) {
+				connectionPool.release(connection);
+				connection = null;
+			}
+		}
+
+		private int pickReadHost() {
+			int hosts = readConnections.length;
+			if (readBalance == ReadBalance.ROUND_ROBIN) {
+				int host = nextReadHost;
+				nextReadHost = (nextReadHost + 1) % hosts;
+				return host;
+			}
+			/* least loaded, ties go to the host after the one picked last */
+			int best = -1;
+			int bestLoad = Integer.MAX_VALUE;
+			for (int i = 0; i < hosts; i++) {
+				int host = (nextReadHost + i) % hosts;
+				int load = readsInFlight[host].get();
+				if (load < bestLoad) {
+					best = host;
+					bestLoad = load;
+				}
+			}
+			nextReadHost = (best + 1) % hosts;
+			return best;
+		}
+
+		void finish() {
 			try {
 				// clean up connections
 				if (connection!= null ) {
 					connection.close();
 				}
+				if (readConnections != null) {
+					for (Connection readConnection : readConnections) {
+						if (readConnection != null) {
+							readConnection.close();
+						}
+					}
+				}
 			} catch (SQLException ex ){
 
 			}
-			reportDone();
+			reportDone(this);
+		}
+
+		/* the index of the next script to run, drawn by weight */
+		int pickScript() {
+			if (scriptSessions.length == 1) {
+				return 0;
+			}
+			int pick = random.nextInt(totalScriptWeight);
+			for (int i = 0; i < scriptSessions.length; i++) {
+				pick -= scriptSessions[i].getScript().getWeight();
+				if (pick < 0) {
+					return i;
+				}
+			}
+			return scriptSessions.length - 1;
+		}
+
+		/*
+		 * doScript() - Executes one custom script, which manages its own transaction,
+		 * or on a retry the same one again.
+		 */
+		void doScript(Script.Session session, boolean retry) throws SQLException {
+			if (!connection.getAutoCommit()) {
+				connection.setAutoCommit(true);
+			}
+			if (retry) {
+				session.retry(connection);
+			} else {
+				session.execute(connection, random);
+			}
 		}
 
 		/*
 		 * doOne() - Executes a single TPC BM B transaction.
 		 */
-		int doOne(QueryUtils queryUtils, int aid, int bid, int tid, int delta) {
+		int doOne(QueryUtils queryUtils, int aid, int bid, int tid, int delta) throws SQLException {
 
-			try  {
-				if (selectOnly) {
-					return queryUtils.executeSelectQuery(connection, aid);
-				}
-				// note the return above
-				if (isTransactionBlock) {
-					connection.setAutoCommit(false);
+			if (selectOnly) {
+				long t = startStatement(TpcbStatement.SELECT_BALANCE, aid);
+				int aBalance = queryUtils.executeSelectQuery(connection, aid);
+				endStatement(t);
+				return aBalance;
+			}
+			if (pipeline) {
+				// the statement string has its own BEGIN/END
+				if (!connection.getAutoCommit()) {
+					connection.setAutoCommit(true);
 				}
+				long t = startStatement(TpcbStatement.PIPELINE, aid);
+				int aBalance = queryUtils.executeTpcbPipelined(connection, aid, bid, tid, delta);
+				endStatement(t);
+				return aBalance;
+			}
+			// note the returns above
+			if (isTransactionBlock) {
+				connection.setAutoCommit(false);
+			}
 
-				queryUtils.executeUpdateAccounts(connection, delta, aid);
+			long t = startStatement(TpcbStatement.UPDATE_ACCOUNTS, aid);
+			queryUtils.executeUpdateAccounts(connection, delta, aid);
+			endStatement(t);
+
+			t = startStatement(TpcbStatement.SELECT_BALANCE, aid);
+			int aBalance = queryUtils.executeSelectQuery(connection, aid);
+			endStatement(t);
+			t = startStatement(TpcbStatement.UPDATE_TELLERS, tid);
+			queryUtils.executeUpdateTellersQuery( connection, delta, tid);
+			endStatement(t);
+			t = startStatement(TpcbStatement.UPDATE_BRANCHES, bid);
+			queryUtils.executeUpdateBranchesQuery( connection, delta, bid);
+			endStatement(t);
+			t = startStatement(TpcbStatement.INSERT_HISTORY, aid);
+			queryUtils.executeInsertHistory( connection, aid, bid, tid, delta );
+			endStatement(t);
+
+			if (isTransactionBlock) {
+				t = startStatement(TpcbStatement.COMMIT, aid);
+				connection.commit();
+				endStatement(t);
+			}
+			return aBalance;
+		}
 
-				int aBalance = queryUtils.executeSelectQuery(connection, aid);
-				queryUtils.executeUpdateTellersQuery( connection, delta, tid);
-				queryUtils.executeUpdateBranchesQuery( connection, delta, bid);
-				queryUtils.executeInsertHistory( connection, aid, bid, tid, delta );
+		/*
+		 * Marks the statement about to run, starts its flight recorder event
+		 * when a recording wants it and, with --report-per-command, returns its
+		 * start time.
+		 */
+		private long startStatement(TpcbStatement statement, int key) {
+			runningStatement = statement;
+			if (STATEMENT_EVENTS.isEnabled()) {
+				statementEvent = new StatementEvent();
+				statementEvent.key = key;
+				statementEvent.begin();
+			}
+			return statementLatency != null ? System.nanoTime() : 0;
+		}
 
-				if (isTransactionBlock) {
-					connection.commit();
-				}
-				return aBalance;
-			} catch (SQLException ex) {
-				if (verbose) {
-					System.err.println("Transaction failed: " + ex.getMessage());
-					ex.printStackTrace();
-				}
-				incrementFailedTransactionCount();
-					return 0;
+		private void endStatement(long start) {
+			if (statementLatency != null) {
+				statementLatency[runningStatement.ordinal()].recordValue((System.nanoTime() - start) / 1000);
 			}
+			commitStatementEvent("ok");
+			runningStatement = null;
 		}
-	}
 
-	static class MemoryWatcherThread extends Thread {
-		long min = 0;
-		long max = 0;
-		boolean running;
+		private void commitStatementEvent(String outcome) {
+			if (statementEvent == null) {
+				return;
+			}
+			statementEvent.end();
+			if (statementEvent.shouldCommit()) {
+				statementEvent.clientId = clientid;
+				statementEvent.statement = runningStatement.label;
+				statementEvent.outcome = outcome;
+				statementEvent.commit();
+			}
+			statementEvent = null;
+		}
+	}
 
-		public void run() {
-			running = true;
-			min = Runtime.getRuntime().freeMemory();
+	/*
+	 * Prints interval throughput and latency every few seconds, like pgbench -P.
+	 * Only reads the shared adders so it never blocks the clients.
+	 */
+	class ProgressThread extends Thread {
+		final int seconds;
+		final long intervalNanos;
+		final boolean print;
+		/* the counters of the phase this thread follows, the warm-up or the measured one */
+		final Counters phase;
+		final long start;
+		/* per interval throughput and average latency, read once the thread has been joined */
+		final List<Double> intervalTps = new ArrayList<>();
+		final List<Double> intervalLatency = new ArrayList<>();
+
+		ProgressThread(int seconds, boolean print, Counters phase, long start) {
+			this.seconds = seconds;
+			this.intervalNanos = TimeUnit.SECONDS.toNanos(seconds);
+			this.print = print;
+			this.phase = phase;
+			this.start = start;
+			setDaemon(true);
+		}
 
-			while (running) {
-				long currentFree = Runtime.getRuntime().freeMemory();
-				long currentAlloc = Runtime.getRuntime().totalMemory();
-				long used = currentAlloc - currentFree;
+		/* the throughput of up to count most recent intervals, while the thread runs */
+		synchronized double[] recentTps(int count) {
+			int from = Math.max(0, intervalTps.size() - count);
+			double[] tps = new double[intervalTps.size() - from];
+			for (int i = 0; i < tps.length; i++) {
+				tps[i] = intervalTps.get(from + i);
+			}
+			return tps;
+		}
 
-				if (used < min)
-					min = used;
-				if (used > max)
-					max = used;
+		public void run() {
+			long next = start + intervalNanos;
+			long lastTransactions = 0, lastFailed = 0, lastSum = 0;
+			double lastSquares = 0;
+			long lastTime = start;
 
+			while (true) {
 				try {
-					sleep(100);
+					TimeUnit.NANOSECONDS.sleep(next - System.nanoTime());
 				} catch (InterruptedException e) {
-					running = false;
+					return;
 				}
+				long now = System.nanoTime();
+				long transactions = phase.transactionCount.sum();
+				long failed = phase.failedTransactions.sum();
+				long sum = phase.latencySum.sum();
+				double squares = phase.latencySumSquares.sum();
+
+				long succeeded = (transactions - lastTransactions) - (failed - lastFailed);
+				double seconds = (now - lastTime) / 1E9;
+				double average = 0, stddev = 0;
+				if (succeeded > 0) {
+					average = (double) (sum - lastSum) / succeeded;
+					stddev = Math.sqrt(Math.max(0, (squares - lastSquares) / succeeded - average * average));
+				}
+				if (print) {
+					System.out.printf("%s: %.1f s, %.1f tps, lat %.3f ms stddev %.3f, %d failed%n",
+							phase.isMeasured() ? "progress" : "warm-up", (now - start) / 1E9, succeeded / seconds,
+							average / 1000.0, stddev / 1000.0, failed - lastFailed);
+				}
+				if (workerLink != null && phase.isMeasured()) {
+					sendInterval(intervalTps.size(), seconds, succeeded, failed - lastFailed, sum - lastSum);
+				}
+				synchronized (this) {
+					intervalTps.add(succeeded / seconds);
+					intervalLatency.add(average / 1000.0);
+				}
+
+				lastTransactions = transactions;
+				lastFailed = failed;
+				lastSum = sum;
+				lastSquares = squares;
+				lastTime = now;
+				next += intervalNanos;
 			}
 		}
 	}
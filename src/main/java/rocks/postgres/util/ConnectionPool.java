@@ -0,0 +1,52 @@
+package rocks.postgres.util;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/*
+ * Minimal fixed size connection pool. Connections are handed out in FIFO
+ * order and a borrower blocks until one is released, which is the contention
+ * we want to measure, so there is deliberately no validation, eviction or
+ * growth.
+ */
+public class ConnectionPool implements AutoCloseable {
+    private final List<Connection> connections;
+    private final BlockingQueue<Connection> idle;
+
+    public ConnectionPool(List<Connection> connections) {
+        this.connections = new ArrayList<>(connections);
+        this.idle = new ArrayBlockingQueue<>(connections.size(), true, connections);
+    }
+
+    public Connection borrow() throws SQLException {
+        try {
+            return idle.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a pooled connection", ex);
+        }
+    }
+
+    public void release(Connection connection) {
+        idle.offer(connection);
+    }
+
+    public int size() {
+        return connections.size();
+    }
+
+    @Override
+    public void close() {
+        for (Connection connection : connections) {
+            try {
+                connection.close();
+            } catch (SQLException ex) {
+                // nothing useful to do, we are shutting down
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package rocks.postgres.util;
+
+import java.sql.SQLException;
+
+import org.postgresql.copy.CopyIn;
+
+/*
+ * Formats COPY text rows straight into a reused byte buffer and hands the
+ * buffer to the COPY stream whenever it fills up, so generating millions of
+ * rows allocates no Strings and no per-row objects.
+ */
+public class CopyRowWriter {
+    // longest possible field: '-' and 19 digits
+    private static final int MAX_FIELD_LENGTH = 20;
+
+    private final CopyIn copyIn;
+    private final byte[] buffer;
+    private int position;
+    private boolean firstField = true;
+
+    public CopyRowWriter(CopyIn copyIn, int bufferSize) {
+        this.copyIn = copyIn;
+        this.buffer = new byte[Math.max(bufferSize, MAX_FIELD_LENGTH + 2)];
+    }
+
+    public CopyRowWriter field(long value) throws SQLException {
+        if (position + MAX_FIELD_LENGTH + 2 > buffer.length) {
+            flush();
+        }
+        if (!firstField) {
+            buffer[position++] = '\t';
+        }
+        firstField = false;
+        if (value == Long.MIN_VALUE) {
+            // cannot be negated, never a key anyway
+            for (byte b : Long.toString(value).getBytes()) {
+                buffer[position++] = b;
+            }
+            return this;
+        }
+        if (value < 0) {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int start = position;
+        do {
+            buffer[position++] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        // digits were written least significant first
+        for (int i = start, j = position - 1; i < j; i++, j--) {
+            byte b = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = b;
+        }
+        return this;
+    }
+
+    public void endRow() throws SQLException {
+        if (position + 1 > buffer.length) {
+            flush();
+        }
+        buffer[position++] = '\n';
+        firstField = true;
+    }
+
+    private void flush() throws SQLException {
+        if (position > 0) {
+            copyIn.writeToCopy(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+    /*
+     * Sends whatever is still buffered and completes the COPY, returning the
+     * number of rows the server reports as copied.
+     */
+    public long finish() throws SQLException {
+        flush();
+        return copyIn.endCopy();
+    }
+}
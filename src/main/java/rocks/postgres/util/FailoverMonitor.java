@@ -0,0 +1,258 @@
+package rocks.postgres.util;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Follows throughput through database failovers. Clients report every
+ * transaction, successes are counted per second and failures open an
+ * outage event. Failures within a few seconds of each other belong to the
+ * same event, however many clients report them. Once the run is over the
+ * per second counts give each event's time to full throughput, measured
+ * against the throughput of the seconds before it. The per second counts
+ * grow in chunks as the run goes on, so a run of unknown length (a
+ * transaction count rather than --time) keeps all of its seconds.
+ *
+ * Failures are classified by SQLState the way the aws-advanced-jdbc-wrapper
+ * reports them: 08S02 when it failed over to a new connection, 08007 when
+ * that happened during a commit whose outcome is unknown, and 08001,
+ * 08003, 08006 or 08S01 when the connection is gone.
+ */
+public class FailoverMonitor {
+    public enum Failure {
+        FAILOVER_SUCCEEDED("failover succeeded"),
+        OUTCOME_UNKNOWN("transaction outcome unknown"),
+        CONNECTION_LOST("connection lost"),
+        OTHER("other");
+
+        private final String label;
+
+        Failure(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    /* events closer than this to the previous one are treated as part of it */
+    private static final long MERGE_NANOS = TimeUnit.SECONDS.toNanos(5);
+    /* seconds before an event averaged for its baseline throughput */
+    private static final int BASELINE_SECONDS = 10;
+    private static final int CHUNK_SECONDS = 600;
+
+    private final long startNanos;
+    /*
+     * Success counts per second in chunks of CHUNK_SECONDS. Growing replaces
+     * the outer array only, the chunks stay, so no increment gets lost.
+     */
+    private volatile AtomicLongArray[] successes;
+    private final List<Event> events = new ArrayList<>();
+    private volatile Event open;
+
+    /* capacitySeconds is the expected length of the run, the counts grow past it */
+    public FailoverMonitor(long startNanos, int capacitySeconds) {
+        this.startNanos = startNanos;
+        this.successes = new AtomicLongArray[Math.max(1, (capacitySeconds + CHUNK_SECONDS - 1) / CHUNK_SECONDS)];
+        for (int i = 0; i < successes.length; i++) {
+            successes[i] = new AtomicLongArray(CHUNK_SECONDS);
+        }
+    }
+
+    public static Failure classify(SQLException ex) {
+        for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+            if (!(cause instanceof SQLException)) {
+                continue;
+            }
+            String state = ((SQLException) cause).getSQLState();
+            if (state == null) {
+                continue;
+            }
+            switch (state) {
+                case "08S02":
+                    return Failure.FAILOVER_SUCCEEDED;
+                case "08007":
+                    return Failure.OUTCOME_UNKNOWN;
+                case "08001":
+                case "08003":
+                case "08006":
+                case "08S01":
+                    return Failure.CONNECTION_LOST;
+                default:
+            }
+        }
+        return Failure.OTHER;
+    }
+
+    /*
+     * A success ends the outage only if the transaction started after it,
+     * not when it was already running elsewhere when the failures began.
+     */
+    public void success(long startNanos, long endNanos) {
+        int second = second(endNanos);
+        if (second >= 0) {
+            chunk(second / CHUNK_SECONDS).incrementAndGet(second % CHUNK_SECONDS);
+        }
+        Event event = open;
+        if (event != null) {
+            synchronized (this) {
+                if (event.firstSuccess == 0 && startNanos >= event.start) {
+                    event.firstSuccess = endNanos;
+                }
+            }
+        }
+    }
+
+    /*
+     * Only connection failures open an event, other failures (serialization
+     * errors, constraint violations) are counted when they happen during one.
+     */
+    public synchronized void failure(long nanos, Failure failure) {
+        Event event = open;
+        if (event == null || nanos - event.lastFailure > MERGE_NANOS) {
+            if (failure == Failure.OTHER) {
+                return;
+            }
+            event = new Event(nanos);
+            events.add(event);
+            open = event;
+        }
+        event.lastFailure = Math.max(event.lastFailure, nanos);
+        event.counts[failure.ordinal()]++;
+    }
+
+    public synchronized List<Event> getEvents() {
+        return new ArrayList<>(events);
+    }
+
+    /* successful transactions in each second of the run so far */
+    public long[] getSuccessesPerSecond(long endNanos) {
+        int seconds = (int) (Math.max(0, endNanos - startNanos) / 1000000000L + 1);
+        AtomicLongArray[] chunks = successes;
+        long[] counts = new long[seconds];
+        for (int i = 0; i < seconds && i / CHUNK_SECONDS < chunks.length; i++) {
+            counts[i] = chunks[i / CHUNK_SECONDS].get(i % CHUNK_SECONDS);
+        }
+        return counts;
+    }
+
+    private AtomicLongArray chunk(int index) {
+        AtomicLongArray[] chunks = successes;
+        if (index < chunks.length) {
+            return chunks[index];
+        }
+        synchronized (this) {
+            chunks = successes;
+            if (index >= chunks.length) {
+                int length = chunks.length;
+                chunks = Arrays.copyOf(chunks, Math.max(index + 1, 2 * length));
+                for (int i = length; i < chunks.length; i++) {
+                    chunks[i] = new AtomicLongArray(CHUNK_SECONDS);
+                }
+                successes = chunks;
+            }
+            return chunks[index];
+        }
+    }
+
+    /*
+     * Seconds from the event until the first whole second with at least
+     * fraction of the baseline throughput, at or after the first success.
+     * -1 when throughput never recovered or there is no baseline.
+     */
+    public synchronized double timeToFullThroughput(Event event, long[] perSecond, double fraction) {
+        double baseline = event.getBaselineTps(perSecond);
+        if (event.firstSuccess == 0 || baseline <= 0) {
+            return -1;
+        }
+        int from = Math.max(second(event.start) + 1, second(event.firstSuccess));
+        if (from <= 0) {
+            return -1;
+        }
+        for (int second = from; second < perSecond.length - 1; second++) {
+            if (perSecond[second] >= fraction * baseline) {
+                return Math.max(0, (startNanos + TimeUnit.SECONDS.toNanos(second) - event.start) / 1E9);
+            }
+        }
+        return -1;
+    }
+
+    private int second(long nanos) {
+        long second = (nanos - startNanos) / 1000000000L;
+        return second < 0 || second > Integer.MAX_VALUE ? -1 : (int) second;
+    }
+
+    public final class Event {
+        final long start;
+        long lastFailure;
+        long firstSuccess;
+        final long[] counts = new long[Failure.values().length];
+
+        Event(long start) {
+            this.start = start;
+            this.lastFailure = start;
+        }
+
+        /* seconds since the measurement started */
+        public double getStartSeconds() {
+            return (start - startNanos) / 1E9;
+        }
+
+        /* the second of the run the event started in */
+        public int getStartSecond() {
+            return second(start);
+        }
+
+        /* the second of the first success after the event, -1 if there was none */
+        public int getRecoverySecond() {
+            synchronized (FailoverMonitor.this) {
+                return firstSuccess == 0 ? -1 : second(firstSuccess);
+            }
+        }
+
+        public long getFailed() {
+            synchronized (FailoverMonitor.this) {
+                long failed = 0;
+                for (long count : counts) {
+                    failed += count;
+                }
+                return failed;
+            }
+        }
+
+        /* -1 when no transaction succeeded after the event */
+        public double getTimeToFirstSuccess() {
+            synchronized (FailoverMonitor.this) {
+                return firstSuccess == 0 ? -1 : (firstSuccess - start) / 1E9;
+            }
+        }
+
+        public long getCount(Failure failure) {
+            synchronized (FailoverMonitor.this) {
+                return counts[failure.ordinal()];
+            }
+        }
+
+        /* average throughput of the whole seconds before the event */
+        public double getBaselineTps(long[] perSecond) {
+            int end = Math.min(second(start), perSecond.length);
+            if (end < 0) {
+                return 0;
+            }
+            int begin = Math.max(0, end - BASELINE_SECONDS);
+            if (end <= begin) {
+                return 0;
+            }
+            long sum = 0;
+            for (int i = begin; i < end; i++) {
+                sum += perSecond[i];
+            }
+            return (double) sum / (end - begin);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package rocks.postgres.util;
+
+import java.util.random.RandomGenerator;
+
+/*
+ * Draws keys in [0, n) following one of pgbench's distributions:
+ *
+ *   uniform
+ *   gaussian:theta     normal, cut off at +/- theta standard deviations (theta >= 2)
+ *   exponential:theta  exponential, cut off so that the density at n is e^-theta of the density at 0
+ *   zipfian:s          key k drawn with probability proportional to 1/(k+1)^s
+ *
+ * A distribution is immutable once built and can be shared by all clients,
+ * each passing its own random generator.
+ */
+public abstract class KeyDistribution {
+    protected final long n;
+
+    protected KeyDistribution(long n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("key range must not be empty");
+        }
+        this.n = n;
+    }
+
+    public abstract long next(RandomGenerator random);
+
+    public static KeyDistribution create(String spec, long n) {
+        int colon = spec.indexOf(':');
+        String name = colon < 0 ? spec : spec.substring(0, colon);
+        double parameter = 0;
+        if (colon >= 0) {
+            try {
+                parameter = Double.parseDouble(spec.substring(colon + 1));
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid distribution parameter in " + spec);
+            }
+        }
+        switch (name.toLowerCase()) {
+            case "uniform":
+                return new Uniform(n);
+            case "gaussian":
+                return new Gaussian(n, colon < 0 ? 2.5 : parameter);
+            case "exponential":
+                return new Exponential(n, colon < 0 ? 1.0 : parameter);
+            case "zipfian":
+                return new Zipfian(n, colon < 0 ? 1.0 : parameter);
+            default:
+                throw new IllegalArgumentException("Unknown distribution " + spec + ", expected uniform, gaussian:theta, exponential:theta or zipfian:s");
+        }
+    }
+
+    static final class Uniform extends KeyDistribution {
+        Uniform(long n) {
+            super(n);
+        }
+
+        public long next(RandomGenerator random) {
+            return random.nextLong(n);
+        }
+    }
+
+    static final class Gaussian extends KeyDistribution {
+        final double theta;
+
+        Gaussian(long n, double theta) {
+            super(n);
+            if (theta < 2.0) {
+                throw new IllegalArgumentException("gaussian parameter must be at least 2.0");
+            }
+            this.theta = theta;
+        }
+
+        public long next(RandomGenerator random) {
+            double z;
+            do {
+                z = random.nextGaussian();
+            } while (z < -theta || z >= theta);
+            return Math.min(n - 1, (long) (n * (z + theta) / (2.0 * theta)));
+        }
+    }
+
+    static final class Exponential extends KeyDistribution {
+        final double theta;
+        final double cut;
+
+        Exponential(long n, double theta) {
+            super(n);
+            if (theta <= 0.0) {
+                throw new IllegalArgumentException("exponential parameter must be greater than zero");
+            }
+            this.theta = theta;
+            this.cut = Math.exp(-theta);
+        }
+
+        public long next(RandomGenerator random) {
+            double uniform = 1.0 - random.nextDouble();
+            double rand = -Math.log(cut + (1.0 - cut) * uniform) / theta;
+            return Math.min(n - 1, (long) (n * rand));
+        }
+    }
+
+    /*
+     * Rejection-inversion sampling (Hoermann and Derflinger), as used by
+     * Apache Commons. Everything that depends only on n and s is computed
+     * once, a draw costs a couple of exp/log calls whatever the key range.
+     */
+    static final class Zipfian extends KeyDistribution {
+        final double exponent;
+        final double hIntegralX1;
+        final double hIntegralNumberOfElements;
+        final double s;
+
+        Zipfian(long n, double exponent) {
+            super(n);
+            if (exponent <= 0.0) {
+                throw new IllegalArgumentException("zipfian parameter must be greater than zero");
+            }
+            this.exponent = exponent;
+            hIntegralX1 = hIntegral(1.5) - 1.0;
+            hIntegralNumberOfElements = hIntegral(n + 0.5);
+            s = 2.0 - hIntegralInverse(hIntegral(2.5) - h(2.0));
+        }
+
+        public long next(RandomGenerator random) {
+            while (true) {
+                double u = hIntegralNumberOfElements + random.nextDouble() * (hIntegralX1 - hIntegralNumberOfElements);
+                double x = hIntegralInverse(u);
+                long k = (long) (x + 0.5);
+                if (k < 1) {
+                    k = 1;
+                } else if (k > n) {
+                    k = n;
+                }
+                if (k - x <= s || u >= hIntegral(k + 0.5) - h(k)) {
+                    return k - 1;
+                }
+            }
+        }
+
+        private double hIntegral(double x) {
+            double logX = Math.log(x);
+            return helper2((1.0 - exponent) * logX) * logX;
+        }
+
+        private double h(double x) {
+            return Math.exp(-exponent * Math.log(x));
+        }
+
+        private double hIntegralInverse(double x) {
+            double t = x * (1.0 - exponent);
+            if (t < -1.0) {
+                t = -1.0;
+            }
+            return Math.exp(helper1(t) * x);
+        }
+
+        /* log(1+x)/x, accurate near zero */
+        private static double helper1(double x) {
+            if (Math.abs(x) > 1e-8) {
+                return Math.log1p(x) / x;
+            }
+            return 1.0 - x * (0.5 - x * (1.0 / 3.0 - 0.25 * x));
+        }
+
+        /* (exp(x)-1)/x, accurate near zero */
+        private static double helper2(double x) {
+            if (Math.abs(x) > 1e-8) {
+                return Math.expm1(x) / x;
+            }
+            return 1.0 + x * 0.5 * (1.0 + x * 1.0 / 3.0 * (1.0 + 0.25 * x));
+        }
+    }
+}
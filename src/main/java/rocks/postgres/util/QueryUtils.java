@@ -2,6 +2,17 @@ package rocks.postgres.util;
 
 import java.sql.*;
 
+import org.postgresql.PGStatement;
+import org.postgresql.core.BaseConnection;
+import org.postgresql.core.TransactionState;
+
+/*
+ * Executes the built-in TPC-B statements. An instance belongs to one client
+ * (or one pooled connection) and is meant to live for the whole run: the
+ * prepared statements and the simple Statement are cached for the connection
+ * they were created on and only recreated when a different connection is
+ * passed in.
+ */
 public class QueryUtils {
 
     boolean useTransactions = false;
@@ -16,6 +27,27 @@ public class QueryUtils {
     // delta, tid
     private final String updateTellersQuery = "UPDATE pgbench_tellers SET tbalance = tbalance + ? WHERE  tid = ?";
     private final String insertHistoryQuery = "INSERT INTO pgbench_history(tid, bid, aid, delta) values (?,?,?,?)";
+    // the whole TPC-B transaction as one multi-statement string, sent in a single round trip
+    // delta, aid, aid, delta, tid, delta, bid, tid, bid, aid, delta
+    private final String tpcbPipelineQuery = "BEGIN;"
+            + updateAccountsQuery + ";"
+            + selectQuery + ";"
+            + updateTellersQuery + ";"
+            + updateBranchesQuery + ";"
+            + insertHistoryQuery + ";"
+            + "END";
+
+    private final SqlTemplate selectTemplate = new SqlTemplate(selectQuery);
+    private final SqlTemplate updateAccountsTemplate = new SqlTemplate(updateAccountsQuery);
+    private final SqlTemplate updateBranchesTemplate = new SqlTemplate(updateBranchesQuery);
+    private final SqlTemplate updateTellersTemplate = new SqlTemplate(updateTellersQuery);
+    private final SqlTemplate insertHistoryTemplate = new SqlTemplate(insertHistoryQuery);
+    private final SqlTemplate tpcbPipelineTemplate = new SqlTemplate(tpcbPipelineQuery);
+    private final StringBuilder sqlBuffer = new StringBuilder(512);
+    private final int[] pipelineArgs = new int[11];
+
+    private Connection connection;
+    private Statement simpleStmt;
 
     public QueryUtils(boolean useTransactions, boolean usePrepared, boolean useBinary ) {
         this.useBinary = useBinary;
@@ -23,40 +55,115 @@ public class QueryUtils {
         this.useTransactions = useTransactions;
     }
 
-    String prepareQuery(String query, int ...args ) {
-        String replacedQuery = query;
+    /*
+     * Forgets the statements cached for a previous connection. They are not
+     * closed, with --connect their connection is already gone, in pool mode
+     * it is in use by somebody else.
+     */
+    private void bind(Connection con) {
+        if (con != connection) {
+            connection = con;
+            simpleStmt = null;
+            updateAccountsPstmt = null;
+            insertHistoryPstmt = null;
+            updateBranchesPstmt = null;
+            updateTellersPstmt = null;
+            tpcbPipelinePstmt = null;
+            selectPstmt = null;
+        }
+    }
+
+    /*
+     * Forgets the cached statements of the current connection, for when the
+     * driver replaced the server connection underneath it.
+     */
+    public void reset() {
+        bind(null);
+    }
+
+    /*
+     * Ends whatever transaction a failed statement left open. In autocommit
+     * mode the pipelined transaction and the scripts run their own BEGIN,
+     * which only a ROLLBACK statement ends, otherwise the session would stay
+     * in an aborted transaction and fail everything with 25P02. The driver
+     * knows the state from the server's ReadyForQuery, when it can not be
+     * asked the ROLLBACK is sent anyway, outside a transaction it is only a
+     * warning.
+     */
+    public static void rollback(Connection con) throws SQLException {
+        if (!con.getAutoCommit()) {
+            con.rollback();
+            return;
+        }
+        if (con.isWrapperFor(BaseConnection.class)
+                && con.unwrap(BaseConnection.class).getTransactionState() == TransactionState.IDLE) {
+            return;
+        }
+        try (Statement stmt = con.createStatement()) {
+            stmt.execute("ROLLBACK");
+        }
+    }
+
+    /*
+     * With useBinary the statement is server prepared before its first
+     * execution, which is what lets pgjdbc use binary transfer right away.
+     */
+    private PreparedStatement prepare(Connection con, String sql) throws SQLException {
+        PreparedStatement pstmt = con.prepareStatement(sql);
+        if (useBinary) {
+            pstmt.unwrap(PGStatement.class).setPrepareThreshold(-1);
+        }
+        return pstmt;
+    }
 
-        for (int i=0; i< args.length; i++){
-            replacedQuery = replacedQuery.replaceFirst("\\?", Integer.toString(args[i]));
+    private Statement simpleStatement(Connection con) throws SQLException {
+        if (simpleStmt == null) {
+            simpleStmt = con.createStatement();
         }
-        return replacedQuery;
+        return simpleStmt;
     }
 
     public String prepareSelectQuery(int aid) {
-        return prepareQuery(selectQuery, new int[] {aid} );
+        return selectTemplate.render(sqlBuffer, aid);
     }
 
     public String prepareUpdateTellersQuery(int delta, int tid) {
-        return prepareQuery(updateTellersQuery, new int[] {delta, tid} );
+        return updateTellersTemplate.render(sqlBuffer, delta, tid);
     }
 
     public String prepareUpdateAccountsQuery(int delta, int aid) {
-        return prepareQuery(updateAccountsQuery, new int[] {delta, aid} );
+        return updateAccountsTemplate.render(sqlBuffer, delta, aid);
     }
 
     public String prepareUpdateBranchesQuery(int delta, int bid) {
-        return prepareQuery(updateBranchesQuery, new int[] { delta, bid} );
+        return updateBranchesTemplate.render(sqlBuffer, delta, bid);
     }
     public String prepareInsertHistoryQuery (int tid, int bid, int aid, int delta) {
-        return prepareQuery(insertHistoryQuery, new int[] { tid, bid, aid, delta} );
+        return insertHistoryTemplate.render(sqlBuffer, tid, bid, aid, delta);
+    }
+
+    public String prepareTpcbPipelineQuery(int aid, int bid, int tid, int delta) {
+        return tpcbPipelineTemplate.render(sqlBuffer, pipelineArgs(aid, bid, tid, delta));
+    }
+
+    // delta, aid, aid, delta, tid, delta, bid, tid, bid, aid, delta
+    private int[] pipelineArgs(int aid, int bid, int tid, int delta) {
+        int[] args = pipelineArgs;
+        args[0] = delta; args[1] = aid;
+        args[2] = aid;
+        args[3] = delta; args[4] = tid;
+        args[5] = delta; args[6] = bid;
+        args[7] = tid; args[8] = bid; args[9] = aid; args[10] = delta;
+        return args;
     }
 
     PreparedStatement updateAccountsPstmt;
     public boolean executeUpdateAccounts(Connection con, int delta, int aid) throws SQLException {
+        bind(con);
 
         if ( usePrepared ) {
             if (updateAccountsPstmt == null ) {
-                updateAccountsPstmt = con.prepareStatement(updateAccountsQuery);
+                updateAccountsPstmt = prepare(con, updateAccountsQuery);
             }
             updateAccountsPstmt.clearParameters();
             updateAccountsPstmt.setInt(1, delta);
@@ -64,19 +171,17 @@ public class QueryUtils {
             return updateAccountsPstmt.executeUpdate() == 1;
         } else {
             String query = prepareUpdateAccountsQuery(delta, aid);
-
-            try (Statement stmt = con.createStatement()) {
-                return stmt.executeUpdate(query) == 1;
-            }
+            return simpleStatement(con).executeUpdate(query) == 1;
         }
     }
 
     PreparedStatement insertHistoryPstmt;
     public boolean executeInsertHistory(Connection con, int tid, int bid, int aid, int delta ) throws SQLException {
+        bind(con);
 
         if ( usePrepared ) {
             if ( insertHistoryPstmt == null ) {
-                insertHistoryPstmt = con.prepareStatement(insertHistoryQuery);
+                insertHistoryPstmt = prepare(con, insertHistoryQuery);
             }
             insertHistoryPstmt.clearParameters();
             insertHistoryPstmt.setInt(1, tid );
@@ -89,19 +194,17 @@ public class QueryUtils {
         } else {
 
             String query = prepareInsertHistoryQuery(tid, bid, aid, delta);
-
-            try (Statement stmt = con.createStatement()) {
-                return stmt.executeUpdate(query) == 1;
-            }
+            return simpleStatement(con).executeUpdate(query) == 1;
         }
     }
 
     PreparedStatement updateBranchesPstmt;
     public boolean executeUpdateBranchesQuery(Connection con, int delta, int bid ) throws SQLException {
+        bind(con);
 
         if ( usePrepared ) {
             if (updateBranchesPstmt == null ) {
-                updateBranchesPstmt = con.prepareStatement(updateBranchesQuery);
+                updateBranchesPstmt = prepare(con, updateBranchesQuery);
             }
             updateBranchesPstmt.clearParameters();
             updateBranchesPstmt.setInt(1, delta);
@@ -110,17 +213,15 @@ public class QueryUtils {
 
         } else {
             String query = prepareUpdateBranchesQuery(delta, bid);
-
-            try (Statement stmt = con.createStatement()) {
-                return stmt.executeUpdate(query) == 1;
-            }
+            return simpleStatement(con).executeUpdate(query) == 1;
         }
     }
     PreparedStatement updateTellersPstmt;
     public boolean executeUpdateTellersQuery(Connection con, int delta, int tid) throws SQLException {
+        bind(con);
         if ( usePrepared ) {
             if ( updateTellersPstmt == null ) {
-                updateTellersPstmt = con.prepareStatement(updateTellersQuery);
+                updateTellersPstmt = prepare(con, updateTellersQuery);
             }
             updateTellersPstmt.clearParameters();
             updateTellersPstmt.setInt(1, delta);
@@ -128,17 +229,57 @@ public class QueryUtils {
             return updateTellersPstmt.executeUpdate() == 1;
         } else {
             String query = prepareUpdateTellersQuery(delta, tid);
+            return simpleStatement(con).executeUpdate(query) == 1;
+        }
+    }
+    /*
+     * Runs the whole TPC-B transaction in one network round trip. pgjdbc sends
+     * every statement of a multi-statement string before a single Sync (or as one
+     * simple Query message), so the server sees them back to back. The
+     * connection must be in autocommit mode as the string carries its own
+     * BEGIN/END. Returns the selected abalance.
+     */
+    PreparedStatement tpcbPipelinePstmt;
+    public int executeTpcbPipelined(Connection con, int aid, int bid, int tid, int delta) throws SQLException {
+        bind(con);
+        if ( usePrepared ) {
+            if ( tpcbPipelinePstmt == null ) {
+                tpcbPipelinePstmt = prepare(con, tpcbPipelineQuery);
+            }
+            int[] args = pipelineArgs(aid, bid, tid, delta);
+            tpcbPipelinePstmt.clearParameters();
+            for (int i = 0; i < args.length; i++) {
+                tpcbPipelinePstmt.setInt(i + 1, args[i]);
+            }
+            return readPipelinedBalance(tpcbPipelinePstmt, tpcbPipelinePstmt.execute());
+        }
+        String query = prepareTpcbPipelineQuery(aid, bid, tid, delta);
+        Statement stmt = simpleStatement(con);
+        return readPipelinedBalance(stmt, stmt.execute(query));
+    }
 
-            try (Statement stmt = con.createStatement()) {
-                return stmt.executeUpdate(query) == 1;
+    private int readPipelinedBalance(Statement stmt, boolean isResultSet) throws SQLException {
+        int aBalance = -1;
+        while (true) {
+            if (isResultSet) {
+                try (ResultSet rs = stmt.getResultSet()) {
+                    if (rs.next()) {
+                        aBalance = rs.getInt(1);
+                    }
+                }
+            } else if (stmt.getUpdateCount() == -1) {
+                return aBalance;
             }
+            isResultSet = stmt.getMoreResults();
         }
     }
+
     PreparedStatement selectPstmt;
     public int executeSelectQuery(Connection con, int aid) throws SQLException {
+        bind(con);
         if ( usePrepared ) {
             if (selectPstmt == null ) {
-                selectPstmt = con.prepareStatement( selectQuery );
+                selectPstmt = prepare(con, selectQuery);
             }
             selectPstmt.clearParameters();
             selectPstmt.setInt(1, aid);
@@ -152,14 +293,12 @@ public class QueryUtils {
             }
         }
         String query = prepareSelectQuery(aid);
-        try ( Statement stmt = con.createStatement() ) {
-            try (ResultSet rs = stmt.executeQuery(query)) {
-                if (rs.next()) {
-                    return rs.getInt(1);
-                }
-                else {
-                    return -1;
-                }
+        try (ResultSet rs = simpleStatement(con).executeQuery(query)) {
+            if (rs.next()) {
+                return rs.getInt(1);
+            }
+            else {
+                return -1;
             }
         }
     }
@@ -0,0 +1,178 @@
+package rocks.postgres.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Reads and writes the result of a run. Files ending in .csv hold a header
+ * row of dotted keys (config.clients, latency.p99_ms, ...) and one row of
+ * values with lists joined by ';', anything else is written as JSON with
+ * nested objects. Either way read() returns the flat, dotted view so
+ * callers do not care which format a file is in.
+ */
+public final class ResultFile {
+    private ResultFile() {
+    }
+
+    public static void write(Path file, Map<String, Object> result) throws IOException {
+        String text;
+        if (isCsv(file)) {
+            Map<String, Object> flat = flatten(result);
+            StringBuilder header = new StringBuilder();
+            StringBuilder row = new StringBuilder();
+            for (Map.Entry<String, Object> entry : flat.entrySet()) {
+                if (header.length() > 0) {
+                    header.append(',');
+                    row.append(',');
+                }
+                header.append(csvField(entry.getKey()));
+                row.append(csvField(csvValue(entry.getValue())));
+            }
+            text = header.append('\n').append(row).append('\n').toString();
+        } else {
+            text = Json.write(result);
+        }
+        Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> read(Path file) throws IOException, ParseException {
+        String text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        if (!isCsv(file)) {
+            Object json = Json.parse(text);
+            if (!(json instanceof Map)) {
+                throw new ParseException(file + " does not hold a JSON object", 0);
+            }
+            return flatten((Map<String, Object>) json);
+        }
+        String[] lines = text.split("\r?\n");
+        if (lines.length < 2) {
+            throw new ParseException(file + " needs a header and a value row", 0);
+        }
+        List<String> keys = csvFields(lines[0]);
+        List<String> values = csvFields(lines[1]);
+        if (keys.size() != values.size()) {
+            throw new ParseException(file + " has " + keys.size() + " columns but " + values.size() + " values", 0);
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            result.put(keys.get(i), values.get(i));
+        }
+        return result;
+    }
+
+    /* a number stored under key, NaN when it is missing */
+    public static double number(Map<String, Object> result, String key) {
+        Object value = result.get(key);
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        if (value instanceof String && !((String) value).isEmpty()) {
+            try {
+                return Double.parseDouble((String) value);
+            } catch (NumberFormatException ex) {
+                return Double.NaN;
+            }
+        }
+        return Double.NaN;
+    }
+
+    /* a list of numbers stored under key, empty when it is missing */
+    public static double[] numbers(Map<String, Object> result, String key) {
+        Object value = result.get(key);
+        if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            double[] numbers = new double[list.size()];
+            for (int i = 0; i < numbers.length; i++) {
+                numbers[i] = ((Number) list.get(i)).doubleValue();
+            }
+            return numbers;
+        }
+        if (value instanceof String && !((String) value).isEmpty()) {
+            String[] parts = ((String) value).split(";");
+            double[] numbers = new double[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                numbers[i] = Double.parseDouble(parts[i]);
+            }
+            return numbers;
+        }
+        return new double[0];
+    }
+
+    static Map<String, Object> flatten(Map<String, Object> result) {
+        Map<String, Object> flat = new LinkedHashMap<>();
+        flatten("", result, flat);
+        return flat;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void flatten(String prefix, Map<String, Object> map, Map<String, Object> flat) {
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            if (entry.getValue() instanceof Map) {
+                flatten(prefix + entry.getKey() + ".", (Map<String, Object>) entry.getValue(), flat);
+            } else {
+                flat.put(prefix + entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private static boolean isCsv(Path file) {
+        return file.getFileName().toString().toLowerCase().endsWith(".csv");
+    }
+
+    private static String csvValue(Object value) {
+        if (value == null) {
+            return "";
+        }
+        if (value instanceof double[] || value instanceof Iterable) {
+            String json = Json.write(value).trim();
+            return json.substring(1, json.length() - 1).replace(", ", ";");
+        }
+        if (value instanceof Number) {
+            return Json.write(value).trim();
+        }
+        return value.toString();
+    }
+
+    private static String csvField(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    private static List<String> csvFields(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
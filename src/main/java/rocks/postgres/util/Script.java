@@ -0,0 +1,368 @@
+package rocks.postgres.util;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.MessageFormat;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+import java.util.random.RandomGenerator;
+
+/*
+ * A custom transaction script in pgbench syntax:
+ *
+ *   \set aid random(1, 100000 * :scale)
+ *   \sleep 10 ms
+ *   SELECT abalance FROM pgbench_accounts WHERE aid = :aid;
+ *
+ * SQL commands end with a semicolon and may span lines, meta commands take
+ * one line. The script is parsed once: expressions are compiled to
+ * ScriptExpression programs and the :variables of every SQL command become
+ * parameters of a PreparedStatement, so running it is a walk over an array
+ * of commands. The variables scale and client_id are predefined.
+ */
+public class Script {
+    public static final int SCALE = 0;
+    public static final int CLIENT_ID = 1;
+
+    private final String name;
+    private final int weight;
+    private final Command[] commands;
+    private final int variableCount;
+    private final int maxStack;
+
+    private Script(String name, int weight, Command[] commands, int variableCount, int maxStack) {
+        this.name = name;
+        this.weight = weight;
+        this.commands = commands;
+        this.variableCount = variableCount;
+        this.maxStack = maxStack;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    /*
+     * Loads a script given as file[@weight].
+     */
+    public static Script load(String spec) throws IOException, ParseException {
+        String file = spec;
+        int weight = 1;
+        int at = spec.lastIndexOf('@');
+        if (at > 0) {
+            file = spec.substring(0, at);
+            try {
+                weight = Integer.parseInt(spec.substring(at + 1));
+            } catch (NumberFormatException ex) {
+                throw new ParseException(MessageFormat.format("Invalid weight in {0}", spec), at);
+            }
+            if (weight < 0) {
+                throw new ParseException(MessageFormat.format("Invalid weight in {0}", spec), at);
+            }
+        }
+        try (Reader in = new FileReader(file)) {
+            return parse(file, weight, in);
+        }
+    }
+
+    public static Script parse(String name, int weight, Reader reader) throws IOException, ParseException {
+        Map<String, Integer> variables = new HashMap<>();
+        variables.put("scale", SCALE);
+        variables.put("client_id", CLIENT_ID);
+        List<Command> commands = new ArrayList<>();
+        int maxStack = 1;
+
+        BufferedReader in = new BufferedReader(reader);
+        StringBuilder sql = new StringBuilder();
+        String line;
+        int lineNum = 0;
+        while ((line = in.readLine()) != null) {
+            lineNum++;
+            String trimmed = line.trim();
+            if (sql.length() == 0 && (trimmed.isEmpty() || trimmed.startsWith("--"))) {
+                continue;
+            }
+            if (sql.length() == 0 && trimmed.startsWith("\\")) {
+                String[] words = trimmed.substring(1).split("\\s+", 3);
+                if (words[0].equals("set") && words.length == 3) {
+                    ScriptExpression expression = ScriptExpression.compile(words[2], variables);
+                    maxStack = Math.max(maxStack, expression.getMaxStack());
+                    Integer slot = variables.get(words[1]);
+                    if (slot == null) {
+                        slot = variables.size();
+                        variables.put(words[1], slot);
+                    }
+                    commands.add(new SetCommand(slot, expression));
+                } else if (words[0].equals("sleep") && words.length >= 2) {
+                    ScriptExpression duration = ScriptExpression.compile(words[1], variables);
+                    long unit = words.length == 2 ? 1000000 : sleepUnit(words[2], lineNum);
+                    commands.add(new SleepCommand(duration, unit));
+                } else {
+                    throw new ParseException(MessageFormat.format("Error in script {0} line {1}: invalid meta command {2}", name, lineNum, trimmed), lineNum);
+                }
+                continue;
+            }
+            sql.append(line).append('\n');
+            if (trimmed.endsWith(";")) {
+                commands.add(compileSql(sql.toString(), variables, name, lineNum));
+                sql.setLength(0);
+            }
+        }
+        if (sql.toString().trim().length() > 0) {
+            commands.add(compileSql(sql.toString(), variables, name, lineNum));
+        }
+        if (commands.isEmpty()) {
+            throw new ParseException(MessageFormat.format("Script {0} has no commands", name), lineNum);
+        }
+        return new Script(name, weight, commands.toArray(new Command[0]), variables.size(), maxStack);
+    }
+
+    private static long sleepUnit(String unit, int lineNum) throws ParseException {
+        switch (unit) {
+            case "us":
+                return 1;
+            case "ms":
+                return 1000;
+            case "s":
+                return 1000000;
+            default:
+                throw new ParseException(MessageFormat.format("Invalid sleep unit {0}", unit), lineNum);
+        }
+    }
+
+    /*
+     * Replaces every :name with a ? parameter, leaving :: casts and anything
+     * inside quotes alone.
+     */
+    private static SqlCommand compileSql(String text, Map<String, Integer> variables, String name, int lineNum) throws ParseException {
+        StringBuilder sql = new StringBuilder(text.length());
+        List<Integer> params = new ArrayList<>();
+        char quote = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+                sql.append(c);
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+                sql.append(c);
+            } else if (c == ':' && i + 1 < text.length() && text.charAt(i + 1) == ':') {
+                sql.append("::");
+                i++;
+            } else if (c == ':' && i + 1 < text.length() && isNameChar(text.charAt(i + 1))) {
+                int start = ++i;
+                while (i < text.length() && isNameChar(text.charAt(i))) {
+                    i++;
+                }
+                String variable = text.substring(start, i--);
+                Integer slot = variables.get(variable);
+                if (slot == null) {
+                    throw new ParseException(MessageFormat.format("Error in script {0} line {1}: undefined variable :{2}", name, lineNum, variable), lineNum);
+                }
+                params.add(slot);
+                sql.append('?');
+            } else {
+                sql.append(c);
+            }
+        }
+        int[] slots = new int[params.size()];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = params.get(i);
+        }
+        return new SqlCommand(sql.toString().trim(), slots);
+    }
+
+    private static boolean isNameChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    public Session newSession(int clientId, long scale) {
+        return new Session(clientId, scale);
+    }
+
+    /*
+     * Per client state of a script: its variables, the expression stack and
+     * the statements it prepared, per connection. With --pool a client comes
+     * back to the same few connections and finds its statements prepared,
+     * so the prepared protocols measure execution rather than parsing.
+     */
+    public class Session {
+        private final long[] variables = new long[variableCount];
+        /* the variables and the seed of the random draws the last transaction started with */
+        private final long[] savedVariables = new long[variableCount];
+        private final TransactionRandom draws = new TransactionRandom();
+        private long seed;
+        private final long[] stack = new long[maxStack];
+        private final Map<Connection, PreparedStatement[]> prepared = new IdentityHashMap<>();
+        /* the statements of the connection the session last ran on */
+        private PreparedStatement[] statements;
+        private Connection preparedOn;
+
+        Session(int clientId, long scale) {
+            variables[SCALE] = scale;
+            variables[CLIENT_ID] = clientId;
+        }
+
+        public Script getScript() {
+            return Script.this;
+        }
+
+        /* runs the script as a new transaction, seeded from random */
+        public void execute(Connection con, RandomGenerator random) throws SQLException {
+            System.arraycopy(variables, 0, savedVariables, 0, variables.length);
+            seed = random.nextLong();
+            run(con);
+        }
+
+        /*
+         * Runs the last transaction again with the variables it started with
+         * and the same random draws, so like in pgbench a retry repeats the
+         * transaction that failed rather than running a different one.
+         */
+        public void retry(Connection con) throws SQLException {
+            System.arraycopy(savedVariables, 0, variables, 0, variables.length);
+            run(con);
+        }
+
+        private void run(Connection con) throws SQLException {
+            draws.state = seed;
+            if (con != preparedOn) {
+                statements = statementsFor(con);
+                preparedOn = con;
+            }
+            try {
+                for (int i = 0; i < commands.length; i++) {
+                    commands[i].execute(this, i, draws);
+                }
+            } catch (ArithmeticException ex) {
+                throw new SQLException(MessageFormat.format("Error in script {0}: {1}", name, ex.getMessage()), ex);
+            }
+        }
+
+        private PreparedStatement[] statementsFor(Connection con) {
+            PreparedStatement[] cached = prepared.get(con);
+            if (cached == null) {
+                /* with --connect the earlier connections are closed, their statements died with them */
+                prepared.keySet().removeIf(Script::isClosed);
+                cached = new PreparedStatement[commands.length];
+                prepared.put(con, cached);
+            }
+            return cached;
+        }
+
+        /*
+         * Forgets the prepared statements, for when the driver replaced the
+         * server connection underneath them. Like QueryUtils.reset() they are
+         * not closed, a pooled connection may be in use by another client.
+         */
+        public void reset() {
+            prepared.clear();
+            statements = null;
+            preparedOn = null;
+        }
+    }
+
+    private static boolean isClosed(Connection con) {
+        try {
+            return con.isClosed();
+        } catch (SQLException ex) {
+            return true;
+        }
+    }
+
+    /*
+     * SplitMix64, the generator behind SplittableRandom, with a state that
+     * can be set back to replay the same draws.
+     */
+    private static final class TransactionRandom implements RandomGenerator {
+        long state;
+
+        @Override
+        public long nextLong() {
+            long z = state += 0x9e3779b97f4a7c15L;
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            return z ^ (z >>> 31);
+        }
+    }
+
+    private abstract static class Command {
+        abstract void execute(Session session, int index, RandomGenerator random) throws SQLException;
+    }
+
+    private static final class SetCommand extends Command {
+        final int slot;
+        final ScriptExpression expression;
+
+        SetCommand(int slot, ScriptExpression expression) {
+            this.slot = slot;
+            this.expression = expression;
+        }
+
+        void execute(Session session, int index, RandomGenerator random) {
+            session.variables[slot] = expression.evaluate(session.variables, session.stack, random);
+        }
+    }
+
+    private static final class SleepCommand extends Command {
+        final ScriptExpression duration;
+        final long unitMicros;
+
+        SleepCommand(ScriptExpression duration, long unitMicros) {
+            this.duration = duration;
+            this.unitMicros = unitMicros;
+        }
+
+        void execute(Session session, int index, RandomGenerator random) {
+            long deadline = System.nanoTime() + duration.evaluate(session.variables, session.stack, random) * unitMicros * 1000;
+            long now;
+            while ((now = System.nanoTime()) < deadline) {
+                LockSupport.parkNanos(deadline - now);
+            }
+        }
+    }
+
+    private static final class SqlCommand extends Command {
+        final String sql;
+        final int[] params;
+
+        SqlCommand(String sql, int[] params) {
+            this.sql = sql;
+            this.params = params;
+        }
+
+        void execute(Session session, int index, RandomGenerator random) throws SQLException {
+            PreparedStatement statement = session.statements[index];
+            if (statement == null) {
+                statement = session.preparedOn.prepareStatement(sql);
+                session.statements[index] = statement;
+            }
+            for (int i = 0; i < params.length; i++) {
+                statement.setLong(i + 1, session.variables[params[i]]);
+            }
+            if (statement.execute()) {
+                try (ResultSet rs = statement.getResultSet()) {
+                    while (rs.next()) {
+                    }
+                }
+            }
+        }
+    }
+}
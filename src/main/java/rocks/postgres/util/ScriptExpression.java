@@ -0,0 +1,273 @@
+package rocks.postgres.util;
+
+import java.text.MessageFormat;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.random.RandomGenerator;
+
+/*
+ * An integer expression of a pgbench style \set command, compiled once into a
+ * flat stack machine program so evaluating it per transaction is a loop over
+ * a long[] with no allocation.
+ *
+ * Supported: integer literals, :variables, + - * / %, unary minus,
+ * parentheses and the functions random(lo, hi), abs(x), min(a, b), max(a, b).
+ */
+public final class ScriptExpression {
+    private static final long CONST = 0;
+    private static final long VAR = 1;
+    private static final long ADD = 2;
+    private static final long SUB = 3;
+    private static final long MUL = 4;
+    private static final long DIV = 5;
+    private static final long MOD = 6;
+    private static final long NEG = 7;
+    private static final long RANDOM = 8;
+    private static final long ABS = 9;
+    private static final long MIN = 10;
+    private static final long MAX = 11;
+
+    private final long[] code;
+    private final int maxStack;
+
+    private ScriptExpression(long[] code, int maxStack) {
+        this.code = code;
+        this.maxStack = maxStack;
+    }
+
+    public int getMaxStack() {
+        return maxStack;
+    }
+
+    /*
+     * Evaluates the expression. stack must have at least getMaxStack() slots,
+     * it is scratch space owned by the caller so it can be reused.
+     */
+    public long evaluate(long[] variables, long[] stack, RandomGenerator random) {
+        int sp = 0;
+        for (int pc = 0; pc < code.length; pc++) {
+            long op = code[pc];
+            if (op == CONST) {
+                stack[sp++] = code[++pc];
+            } else if (op == VAR) {
+                stack[sp++] = variables[(int) code[++pc]];
+            } else if (op == NEG) {
+                stack[sp - 1] = -stack[sp - 1];
+            } else if (op == ABS) {
+                stack[sp - 1] = Math.abs(stack[sp - 1]);
+            } else {
+                long right = stack[--sp];
+                long left = stack[sp - 1];
+                long result;
+                if (op == ADD) {
+                    result = left + right;
+                } else if (op == SUB) {
+                    result = left - right;
+                } else if (op == MUL) {
+                    result = left * right;
+                } else if (op == DIV) {
+                    result = left / right;
+                } else if (op == MOD) {
+                    result = left % right;
+                } else if (op == MIN) {
+                    result = Math.min(left, right);
+                } else if (op == MAX) {
+                    result = Math.max(left, right);
+                } else {
+                    if (right < left) {
+                        throw new ArithmeticException("random() upper bound " + right + " is below lower bound " + left);
+                    }
+                    result = left + random.nextLong(right - left + 1);
+                }
+                stack[sp - 1] = result;
+            }
+        }
+        return stack[0];
+    }
+
+    /*
+     * Compiles text, resolving :name references through variables (name to
+     * slot in the caller's variable array).
+     */
+    public static ScriptExpression compile(String text, Map<String, Integer> variables) throws ParseException {
+        Compiler compiler = new Compiler(text, variables);
+        compiler.expression();
+        compiler.skipSpaces();
+        if (compiler.pos < text.length()) {
+            throw compiler.error("unexpected '" + text.charAt(compiler.pos) + "'");
+        }
+        return new ScriptExpression(Arrays.copyOf(compiler.code, compiler.length), compiler.maxDepth);
+    }
+
+    private static final class Compiler {
+        final String text;
+        final Map<String, Integer> variables;
+        int pos;
+        long[] code = new long[16];
+        int length;
+        int depth;
+        int maxDepth;
+
+        Compiler(String text, Map<String, Integer> variables) {
+            this.text = text;
+            this.variables = variables;
+        }
+
+        void expression() throws ParseException {
+            term();
+            while (true) {
+                if (accept('+')) {
+                    term();
+                    emit(ADD, -1);
+                } else if (accept('-')) {
+                    term();
+                    emit(SUB, -1);
+                } else {
+                    return;
+                }
+            }
+        }
+
+        void term() throws ParseException {
+            unary();
+            while (true) {
+                if (accept('*')) {
+                    unary();
+                    emit(MUL, -1);
+                } else if (accept('/')) {
+                    unary();
+                    emit(DIV, -1);
+                } else if (accept('%')) {
+                    unary();
+                    emit(MOD, -1);
+                } else {
+                    return;
+                }
+            }
+        }
+
+        void unary() throws ParseException {
+            if (accept('-')) {
+                unary();
+                emit(NEG, 0);
+            } else if (accept('+')) {
+                unary();
+            } else {
+                primary();
+            }
+        }
+
+        void primary() throws ParseException {
+            skipSpaces();
+            if (pos >= text.length()) {
+                throw error("unexpected end of expression");
+            }
+            char c = text.charAt(pos);
+            if (accept('(')) {
+                expression();
+                expect(')');
+            } else if (c == ':') {
+                pos++;
+                String name = identifier();
+                Integer slot = variables.get(name);
+                if (slot == null) {
+                    throw error("undefined variable :" + name);
+                }
+                emit(VAR, 1);
+                emitOperand(slot);
+            } else if (Character.isDigit(c)) {
+                int start = pos;
+                while (pos < text.length() && Character.isDigit(text.charAt(pos))) {
+                    pos++;
+                }
+                try {
+                    emit(CONST, 1);
+                    emitOperand(Long.parseLong(text.substring(start, pos)));
+                } catch (NumberFormatException ex) {
+                    throw error("integer out of range");
+                }
+            } else if (Character.isLetter(c)) {
+                String function = identifier();
+                expect('(');
+                if (function.equals("random")) {
+                    arguments(2);
+                    emit(RANDOM, -1);
+                } else if (function.equals("abs")) {
+                    arguments(1);
+                    emit(ABS, 0);
+                } else if (function.equals("min")) {
+                    arguments(2);
+                    emit(MIN, -1);
+                } else if (function.equals("max")) {
+                    arguments(2);
+                    emit(MAX, -1);
+                } else {
+                    throw error("unknown function " + function);
+                }
+                expect(')');
+            } else {
+                throw error("unexpected '" + c + "'");
+            }
+        }
+
+        void arguments(int count) throws ParseException {
+            for (int i = 0; i < count; i++) {
+                if (i > 0) {
+                    expect(',');
+                }
+                expression();
+            }
+        }
+
+        String identifier() throws ParseException {
+            int start = pos;
+            while (pos < text.length() && (Character.isLetterOrDigit(text.charAt(pos)) || text.charAt(pos) == '_')) {
+                pos++;
+            }
+            if (start == pos) {
+                throw error("identifier expected");
+            }
+            return text.substring(start, pos);
+        }
+
+        boolean accept(char c) {
+            skipSpaces();
+            if (pos < text.length() && text.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        void expect(char c) throws ParseException {
+            if (!accept(c)) {
+                throw error("'" + c + "' expected");
+            }
+        }
+
+        void skipSpaces() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        /* stackEffect is the change in stack depth caused by the instruction */
+        void emit(long op, int stackEffect) {
+            emitOperand(op);
+            depth += stackEffect;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+
+        void emitOperand(long value) {
+            if (length == code.length) {
+                code = Arrays.copyOf(code, length * 2);
+            }
+            code[length++] = value;
+        }
+
+        ParseException error(String message) {
+            return new ParseException(MessageFormat.format("Error in expression \"{0}\" at {1}: {2}", text, pos, message), pos);
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package rocks.postgres.util;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Samples the server's statistics views on a connection of its own, on the
+ * same schedule as the client progress intervals so that interval i of both
+ * covers the same time: commits, rollbacks, buffer hits and reads, deadlocks
+ * and temporary files from pg_stat_database, checkpoints from
+ * pg_stat_checkpointer (PostgreSQL 17 and later) or pg_stat_bgwriter, WAL
+ * bytes from pg_stat_wal (14 and later) or the WAL position, and statement
+ * calls and execution time from pg_stat_statements when it is installed.
+ * pg_stat_activity is sampled several times per interval and gives the
+ * average number of active sessions per wait event type.
+ *
+ * The counters are cumulative, every sample holds the difference to the
+ * previous one. A view that can not be read (too old a server, missing
+ * privileges) is dropped with a note instead of failing the run.
+ */
+public class ServerMonitor {
+    /* pg_stat_activity is sampled about this often */
+    private static final long ACTIVITY_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+    private static final int COMMITS = 0;
+    private static final int ROLLBACKS = 1;
+    private static final int BLOCKS_READ = 2;
+    private static final int BLOCKS_HIT = 3;
+    private static final int DEADLOCKS = 4;
+    private static final int TEMP_BYTES = 5;
+    private static final int CHECKPOINTS = 6;
+    private static final int CHECKPOINT_BUFFERS = 7;
+    private static final int WAL_BYTES = 8;
+    private static final int STATEMENT_CALLS = 9;
+    private static final int STATEMENT_MICROS = 10;
+    private static final int COUNTERS = 11;
+
+    /* the monitor's own queries all read pg_stat views, which keeps them out of the statement figures */
+    private static final String NOT_MONITOR = " AND query NOT ILIKE '%pg_stat%'";
+
+    private final Connection con;
+    private long startNanos;
+    private final long intervalNanos;
+    private final boolean print;
+    private final Thread sampler;
+
+    private String databaseQuery = "SELECT xact_commit, xact_rollback, blks_read, blks_hit, deadlocks, temp_bytes"
+            + " FROM pg_stat_database WHERE datname = current_database()";
+    private String checkpointQuery;
+    private String walQuery;
+    private String statementQuery;
+    private String statementListQuery;
+    private String activityQuery = "SELECT coalesce(wait_event_type, 'CPU'), count(*) FROM pg_stat_activity"
+            + " WHERE datname = current_database() AND state = 'active' AND pid <> pg_backend_pid() GROUP BY 1";
+
+    private final List<String> notes = new ArrayList<>();
+    private final List<Sample> samples = new ArrayList<>();
+    private final Map<Long, double[]> statementsAtStart;
+    private final Map<Long, String> statementText = new HashMap<>();
+    private long[] last;
+    private long lastNanos;
+    private final Map<String, Long> waits = new TreeMap<>();
+    private int activitySamples;
+
+    /*
+     * Takes the first sample right away, the thread only starts sampling
+     * intervals with start(), once startNanos is known.
+     */
+    public ServerMonitor(Connection con, long intervalNanos, boolean print) throws SQLException {
+        this.con = con;
+        this.intervalNanos = intervalNanos;
+        this.print = print;
+        con.setAutoCommit(true);
+        String versionNumber = query("SHOW server_version_num", "").trim();
+        int version = versionNumber.isEmpty() ? 0 : Integer.parseInt(versionNumber);
+        if (version >= 170000) {
+            checkpointQuery = "SELECT num_timed + num_requested, buffers_written FROM pg_stat_checkpointer";
+        } else {
+            checkpointQuery = "SELECT checkpoints_timed + checkpoints_req, buffers_checkpoint FROM pg_stat_bgwriter";
+        }
+        if (version >= 140000) {
+            walQuery = "SELECT wal_bytes FROM pg_stat_wal";
+        } else if (version >= 100000) {
+            walQuery = "SELECT pg_wal_lsn_diff(pg_current_wal_lsn(), '0/0')::bigint";
+        } else {
+            note("WAL: needs PostgreSQL 10 or later");
+        }
+        if (!query("SELECT extname FROM pg_extension WHERE extname = 'pg_stat_statements'", "").isEmpty()) {
+            String time = version >= 130000 ? "total_exec_time" : "total_time";
+            String where = " FROM pg_stat_statements WHERE dbid = (SELECT oid FROM pg_database WHERE datname = current_database())" + NOT_MONITOR;
+            statementQuery = "SELECT coalesce(sum(calls), 0), coalesce(sum(" + time + "), 0) * 1000" + where;
+            statementListQuery = "SELECT queryid, calls, " + time + ", query" + where;
+        } else {
+            note("pg_stat_statements: not installed");
+        }
+        statementsAtStart = statements();
+        last = counters();
+        lastNanos = System.nanoTime();
+        sampler = new Thread(this::run, "server-monitor");
+        sampler.setDaemon(true);
+    }
+
+    /* starts sampling intervals of intervalNanos from startNanos on */
+    public void start(long startNanos) {
+        this.startNanos = startNanos;
+        sampler.start();
+    }
+
+    /* stops sampling, the partial last interval is not sampled */
+    public void stop() throws InterruptedException {
+        sampler.interrupt();
+        sampler.join();
+    }
+
+    private void run() {
+        long ticks = Math.max(1, intervalNanos / ACTIVITY_NANOS);
+        long step = intervalNanos / ticks;
+        for (long tick = 1; ; tick++) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(startNanos + tick * step - System.nanoTime());
+            } catch (InterruptedException ex) {
+                return;
+            }
+            sampleActivity();
+            if (tick % ticks == 0) {
+                Sample sample = sample(tick * step / 1E9);
+                synchronized (this) {
+                    samples.add(sample);
+                }
+                if (print) {
+                    System.out.println(sample);
+                }
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+        }
+    }
+
+    private void sampleActivity() {
+        if (activityQuery == null) {
+            return;
+        }
+        try (Statement statement = con.createStatement(); ResultSet rs = statement.executeQuery(activityQuery)) {
+            while (rs.next()) {
+                waits.merge(rs.getString(1), rs.getLong(2), Long::sum);
+            }
+            activitySamples++;
+        } catch (SQLException ex) {
+            activityQuery = drop("pg_stat_activity", ex);
+        }
+    }
+
+    private Sample sample(double seconds) {
+        long[] counters = counters();
+        long now = System.nanoTime();
+        double elapsed = (now - lastNanos) / 1E9;
+        long[] delta = new long[COUNTERS];
+        for (int i = 0; i < COUNTERS; i++) {
+            /* a view dropped since the last sample reads as zero */
+            delta[i] = Math.max(0, counters[i] - last[i]);
+        }
+        Map<String, Double> averageWaits = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : waits.entrySet()) {
+            averageWaits.put(entry.getKey(), activitySamples > 0 ? (double) entry.getValue() / activitySamples : 0);
+        }
+        waits.clear();
+        activitySamples = 0;
+        last = counters;
+        lastNanos = now;
+        return new Sample(seconds, elapsed, delta, averageWaits);
+    }
+
+    private long[] counters() {
+        long[] counters = new long[COUNTERS];
+        databaseQuery = read("pg_stat_database", databaseQuery, counters, COMMITS, ROLLBACKS, BLOCKS_READ, BLOCKS_HIT, DEADLOCKS, TEMP_BYTES);
+        checkpointQuery = read("checkpoints", checkpointQuery, counters, CHECKPOINTS, CHECKPOINT_BUFFERS);
+        walQuery = read("WAL", walQuery, counters, WAL_BYTES);
+        statementQuery = read("pg_stat_statements", statementQuery, counters, STATEMENT_CALLS, STATEMENT_MICROS);
+        return counters;
+    }
+
+    /* reads one row into counters, returns the query or null once it failed */
+    private String read(String source, String sql, long[] counters, int... columns) {
+        if (sql == null) {
+            return null;
+        }
+        try (Statement statement = con.createStatement(); ResultSet rs = statement.executeQuery(sql)) {
+            if (!rs.next()) {
+                note(source + ": no rows");
+                return null;
+            }
+            for (int i = 0; i < columns.length; i++) {
+                counters[columns[i]] = rs.getLong(i + 1);
+            }
+            return sql;
+        } catch (SQLException ex) {
+            return drop(source, ex);
+        }
+    }
+
+    private String drop(String source, SQLException ex) {
+        note(source + ": " + ex.getMessage());
+        return null;
+    }
+
+    private synchronized void note(String note) {
+        notes.add(note);
+    }
+
+    private String query(String sql, String otherwise) throws SQLException {
+        try (Statement statement = con.createStatement(); ResultSet rs = statement.executeQuery(sql)) {
+            return rs.next() && rs.getString(1) != null ? rs.getString(1) : otherwise;
+        }
+    }
+
+    /* queryid to {calls, total time in ms} */
+    private Map<Long, double[]> statements() {
+        Map<Long, double[]> statements = new HashMap<>();
+        if (statementListQuery == null) {
+            return statements;
+        }
+        try (Statement statement = con.createStatement(); ResultSet rs = statement.executeQuery(statementListQuery)) {
+            while (rs.next()) {
+                statements.put(rs.getLong(1), new double[]{rs.getLong(2), rs.getDouble(3)});
+                statementText.put(rs.getLong(1), rs.getString(4));
+            }
+        } catch (SQLException ex) {
+            statementListQuery = drop("pg_stat_statements", ex);
+        }
+        return statements;
+    }
+
+    public synchronized List<Sample> getSamples() {
+        return new ArrayList<>(samples);
+    }
+
+    /* sources that could not be sampled and why */
+    public synchronized List<String> getNotes() {
+        return new ArrayList<>(notes);
+    }
+
+    /*
+     * The statements that took the most server time since the monitor was
+     * created, read from pg_stat_statements once the monitor is stopped.
+     */
+    public List<StatementStats> getTopStatements(int limit) {
+        List<StatementStats> top = new ArrayList<>();
+        for (Map.Entry<Long, double[]> entry : statements().entrySet()) {
+            double[] before = statementsAtStart.getOrDefault(entry.getKey(), new double[2]);
+            long calls = (long) (entry.getValue()[0] - before[0]);
+            if (calls > 0) {
+                top.add(new StatementStats(statementText.get(entry.getKey()), calls, entry.getValue()[1] - before[1]));
+            }
+        }
+        top.sort((a, b) -> Double.compare(b.totalMillis, a.totalMillis));
+        return top.size() > limit ? top.subList(0, limit) : top;
+    }
+
+    /* one interval of server activity, rates are per second */
+    public static final class Sample {
+        public final double seconds;
+        public final double commits;
+        public final double rollbacks;
+        public final double blocksRead;
+        /* share of the block requests served from shared buffers, NaN without any */
+        public final double hitRatio;
+        public final long deadlocks;
+        public final long tempBytes;
+        public final long checkpoints;
+        public final long checkpointBuffers;
+        public final double walBytes;
+        public final long statementCalls;
+        /* average server execution time of the statements, NaN without pg_stat_statements */
+        public final double statementMillis;
+        /* wait event type (CPU when not waiting) to the average number of active sessions */
+        public final Map<String, Double> waits;
+
+        Sample(double seconds, double elapsed, long[] delta, Map<String, Double> waits) {
+            this.seconds = seconds;
+            this.commits = delta[COMMITS] / elapsed;
+            this.rollbacks = delta[ROLLBACKS] / elapsed;
+            this.blocksRead = delta[BLOCKS_READ] / elapsed;
+            long blocks = delta[BLOCKS_READ] + delta[BLOCKS_HIT];
+            this.hitRatio = blocks > 0 ? (double) delta[BLOCKS_HIT] / blocks : Double.NaN;
+            this.deadlocks = delta[DEADLOCKS];
+            this.tempBytes = delta[TEMP_BYTES];
+            this.checkpoints = delta[CHECKPOINTS];
+            this.checkpointBuffers = delta[CHECKPOINT_BUFFERS];
+            this.walBytes = delta[WAL_BYTES] / elapsed;
+            this.statementCalls = delta[STATEMENT_CALLS];
+            this.statementMillis = delta[STATEMENT_CALLS] > 0 ? delta[STATEMENT_MICROS] / 1000.0 / delta[STATEMENT_CALLS] : Double.NaN;
+            this.waits = Collections.unmodifiableMap(waits);
+        }
+
+        /* the wait event types with the most sessions, e.g. "Lock 2.5 IO 0.8" */
+        public String topWaits(int limit) {
+            List<Map.Entry<String, Double>> entries = new ArrayList<>(waits.entrySet());
+            entries.sort((a, b) -> Double.compare(b.getValue(), a.getValue()));
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < Math.min(limit, entries.size()); i++) {
+                text.append(i > 0 ? " " : "").append(entries.get(i).getKey()).append(' ')
+                        .append(String.format("%.1f", entries.get(i).getValue()));
+            }
+            return text.length() > 0 ? text.toString() : "-";
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder line = new StringBuilder(String.format("server: %.1f s, %.1f commits/s, %.1f rollbacks/s, hit %s, %.1f reads/s, WAL %.2f MB/s",
+                    seconds, commits, rollbacks, Double.isNaN(hitRatio) ? "-" : String.format("%.2f%%", hitRatio * 100),
+                    blocksRead, walBytes / 1048576.0));
+            if (checkpoints > 0) {
+                line.append(String.format(", %d checkpoint%s (%d buffers)", checkpoints, checkpoints == 1 ? "" : "s", checkpointBuffers));
+            }
+            if (deadlocks > 0) {
+                line.append(", ").append(deadlocks).append(" deadlocks");
+            }
+            if (tempBytes > 0) {
+                line.append(String.format(", temp %.1f MB", tempBytes / 1048576.0));
+            }
+            if (!Double.isNaN(statementMillis)) {
+                line.append(String.format(", statements %.3f ms", statementMillis));
+            }
+            return line.append(", active: ").append(topWaits(3)).toString();
+        }
+    }
+
+    public static final class StatementStats {
+        public final String query;
+        public final long calls;
+        public final double totalMillis;
+
+        StatementStats(String query, long calls, double totalMillis) {
+            this.query = query;
+            this.calls = calls;
+            this.totalMillis = totalMillis;
+        }
+    }
+}
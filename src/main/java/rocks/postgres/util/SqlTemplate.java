@@ -0,0 +1,78 @@
+package rocks.postgres.util;
+
+/*
+ * SQL text with ? placeholders, split once into the literal fragments around
+ * them. Rendering appends the fragments and the integer arguments to a
+ * caller owned StringBuilder, so the only allocation per query is the final
+ * String handed to the driver.
+ */
+public final class SqlTemplate {
+    private final String sql;
+    private final String[] fragments;
+
+    public SqlTemplate(String sql) {
+        this.sql = sql;
+        int count = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            if (sql.charAt(i) == '?') {
+                count++;
+            }
+        }
+        fragments = new String[count + 1];
+        int start = 0;
+        int fragment = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            if (sql.charAt(i) == '?') {
+                fragments[fragment++] = sql.substring(start, i);
+                start = i + 1;
+            }
+        }
+        fragments[fragment] = sql.substring(start);
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public int getParameterCount() {
+        return fragments.length - 1;
+    }
+
+    public String render(StringBuilder buffer, int a) {
+        checkParameterCount(1);
+        buffer.setLength(0);
+        buffer.append(fragments[0]).append(a).append(fragments[1]);
+        return buffer.toString();
+    }
+
+    public String render(StringBuilder buffer, int a, int b) {
+        checkParameterCount(2);
+        buffer.setLength(0);
+        buffer.append(fragments[0]).append(a).append(fragments[1]).append(b).append(fragments[2]);
+        return buffer.toString();
+    }
+
+    public String render(StringBuilder buffer, int a, int b, int c, int d) {
+        checkParameterCount(4);
+        buffer.setLength(0);
+        buffer.append(fragments[0]).append(a).append(fragments[1]).append(b).append(fragments[2])
+                .append(c).append(fragments[3]).append(d).append(fragments[4]);
+        return buffer.toString();
+    }
+
+    public String render(StringBuilder buffer, int[] args) {
+        checkParameterCount(args.length);
+        buffer.setLength(0);
+        buffer.append(fragments[0]);
+        for (int i = 0; i < args.length; i++) {
+            buffer.append(args[i]).append(fragments[i + 1]);
+        }
+        return buffer.toString();
+    }
+
+    private void checkParameterCount(int count) {
+        if (count != fragments.length - 1) {
+            throw new IllegalArgumentException("Expected " + (fragments.length - 1) + " arguments for " + sql + " but got " + count);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package rocks.postgres.util;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/*
+ * One statement of the built-in transaction in a flight recording, its
+ * duration is the statement latency.
+ */
+@Name("rocks.postgres.Statement")
+@Label("Statement")
+@Category("JDBCBench")
+@Description("A statement of the built-in transaction run by a benchmark client")
+@StackTrace(false)
+public class StatementEvent extends jdk.jfr.Event {
+    @Label("Client")
+    public int clientId;
+
+    @Label("Statement")
+    public String statement;
+
+    @Label("Key")
+    @Description("The account, teller or branch id the statement works on")
+    public int key;
+
+    @Label("Outcome")
+    public String outcome;
+}
@@ -0,0 +1,650 @@
+package rocks.postgres.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * A loopback server speaking just enough of the PostgreSQL v3 protocol to
+ * run the benchmark without a database: startup (any credentials are
+ * accepted, SSL and GSS encryption are declined), simple Query and the
+ * extended Parse/Bind/Describe/Execute/Sync/Close flow.
+ *
+ * Statements are not parsed, they are answered by their first keyword:
+ * a SELECT of abalance returns one int4 row holding 0, any other SELECT
+ * returns no rows, SHOW reports a primary with default settings,
+ * UPDATE/INSERT/DELETE report one row and the rest just
+ * echo their command tag. BEGIN and COMMIT drive the transaction status
+ * reported in ReadyForQuery, which is all the driver needs to stay happy.
+ * After an error inside a transaction block every statement but ROLLBACK
+ * (or COMMIT, which rolls back) fails with 25P02 like on a real server,
+ * and failNextWrite() makes a write fail on purpose.
+ *
+ * An acceptor thread hands connections round robin to a fixed set of
+ * selector threads, so a run measures the client stack rather than the
+ * stub.
+ */
+public class StubServer implements AutoCloseable {
+    private static final int SSL_REQUEST = 80877103;
+    private static final int GSSENC_REQUEST = 80877104;
+    private static final int CANCEL_REQUEST = 80877102;
+
+    private static final int INT4_OID = 23;
+    private static final int TEXT_OID = 25;
+
+    private final ServerSocketChannel serverChannel;
+    private final Loop[] loops;
+    private final Thread acceptor;
+    private volatile boolean running = true;
+    /* the SQLSTATE the next write on any connection fails with */
+    private final AtomicReference<String> writeFailure = new AtomicReference<>();
+
+    public StubServer(int port, int threads) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        loops = new Loop[Math.max(1, threads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new Loop(i);
+            loops[i].start();
+        }
+        acceptor = new Thread(this::accept, "stub-server-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverChannel.close();
+        for (Loop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    /* the next UPDATE, INSERT or DELETE on any connection fails with sqlState, e.g. 40001 */
+    public void failNextWrite(String sqlState) {
+        writeFailure.set(sqlState);
+    }
+
+    private void accept() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                loops[next++ % loops.length].add(channel);
+            } catch (ClosedChannelException ex) {
+                return;
+            } catch (IOException ex) {
+                if (running) {
+                    System.err.println("Stub server accept failed: " + ex.getMessage());
+                }
+            }
+        }
+    }
+
+    private final class Loop extends Thread {
+        final Selector selector;
+        final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+
+        Loop(int id) throws IOException {
+            super("stub-server-" + id);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        void add(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    SocketChannel channel;
+                    while ((channel = pending.poll()) != null) {
+                        channel.register(selector, SelectionKey.OP_READ, new Session(channel, writeFailure));
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Session session = (Session) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                session.read(key);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                session.flush(key);
+                            }
+                        } catch (IOException | RuntimeException ex) {
+                            /* a malformed message ends the connection, not the loop */
+                            key.cancel();
+                            session.channel.close();
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                System.err.println("Stub server loop failed: " + ex.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    try {
+                        key.channel().close();
+                    } catch (IOException ex) {
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException ex) {
+                }
+            }
+        }
+    }
+
+    private static final class Statement {
+        final String sql;
+        final int[] parameterTypes;
+
+        Statement(String sql, int[] parameterTypes) {
+            this.sql = sql;
+            this.parameterTypes = parameterTypes;
+        }
+    }
+
+    private static final class Portal {
+        final String sql;
+        final boolean binary;
+
+        Portal(String sql, boolean binary) {
+            this.sql = sql;
+            this.binary = binary;
+        }
+    }
+
+    /*
+     * One client connection. Incoming bytes accumulate in in until whole
+     * messages are available, responses are appended to out and written
+     * once the batch of messages read has been answered.
+     */
+    private static final class Session {
+        final SocketChannel channel;
+        final AtomicReference<String> writeFailure;
+        final Map<String, Statement> statements = new HashMap<>();
+        final Map<String, Portal> portals = new HashMap<>();
+        ByteBuffer in = ByteBuffer.allocate(8192);
+        ByteBuffer out = ByteBuffer.allocate(8192);
+        boolean started;
+        /* after an error the extended protocol discards everything up to Sync */
+        boolean skipToSync;
+        byte status = 'I';
+        int lengthAt;
+
+        Session(SocketChannel channel, AtomicReference<String> writeFailure) {
+            this.channel = channel;
+            this.writeFailure = writeFailure;
+        }
+
+        void read(SelectionKey key) throws IOException {
+            if (!in.hasRemaining()) {
+                in = grow(in, in.capacity() * 2);
+            }
+            if (channel.read(in) < 0) {
+                throw new EOFException();
+            }
+            in.flip();
+            while (process()) {
+            }
+            in.compact();
+            flush(key);
+        }
+
+        void flush(SelectionKey key) throws IOException {
+            out.flip();
+            channel.write(out);
+            out.compact();
+            key.interestOps(out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        /* handles the next message if it has been read completely */
+        boolean process() throws IOException {
+            int start = in.position();
+            if (!started) {
+                if (in.remaining() < 8) {
+                    return false;
+                }
+                int length = in.getInt(start);
+                if (in.remaining() < length) {
+                    return false;
+                }
+                int code = in.getInt(start + 4);
+                in.position(start + length);
+                if (code == SSL_REQUEST || code == GSSENC_REQUEST) {
+                    ensure(1);
+                    out.put((byte) 'N');
+                } else if (code == CANCEL_REQUEST) {
+                    throw new EOFException();
+                } else {
+                    startup();
+                    started = true;
+                }
+                return true;
+            }
+            if (in.remaining() < 5) {
+                return false;
+            }
+            byte type = in.get(start);
+            int length = in.getInt(start + 1);
+            if (in.remaining() < length + 1) {
+                return false;
+            }
+            ByteBuffer message = in.slice(start + 5, length - 4);
+            in.position(start + 1 + length);
+            if (type == 'X') {
+                throw new EOFException();
+            }
+            if (skipToSync && type != 'S') {
+                return true;
+            }
+            switch (type) {
+                case 'Q':
+                    simpleQuery(cstring(message));
+                    break;
+                case 'P':
+                    parse(message);
+                    break;
+                case 'B':
+                    bind(message);
+                    break;
+                case 'D':
+                    describe(message);
+                    break;
+                case 'E':
+                    execute(message);
+                    break;
+                case 'C':
+                    begin('3');
+                    end();
+                    break;
+                case 'S':
+                    skipToSync = false;
+                    readyForQuery();
+                    break;
+                case 'H':
+                    break;
+                default:
+                    error("0A000", "stub server does not support message type " + (char) type);
+                    skipToSync = true;
+            }
+            return true;
+        }
+
+        void startup() {
+            begin('R');
+            out.putInt(0);
+            end();
+            parameterStatus("server_version", "14.0");
+            parameterStatus("server_encoding", "UTF8");
+            parameterStatus("client_encoding", "UTF8");
+            parameterStatus("DateStyle", "ISO, MDY");
+            parameterStatus("TimeZone", "UTC");
+            parameterStatus("integer_datetimes", "on");
+            parameterStatus("standard_conforming_strings", "on");
+            parameterStatus("is_superuser", "off");
+            begin('K');
+            out.putInt(System.identityHashCode(this));
+            out.putInt(0);
+            end();
+            readyForQuery();
+        }
+
+        void simpleQuery(String sql) {
+            boolean empty = true;
+            int from = 0;
+            while (from < sql.length()) {
+                int semicolon = sql.indexOf(';', from);
+                int to = semicolon < 0 ? sql.length() : semicolon;
+                String statement = sql.substring(from, to).trim();
+                from = to + 1;
+                if (statement.isEmpty()) {
+                    continue;
+                }
+                empty = false;
+                if (!admit(statement)) {
+                    /* the rest of the query string is not run */
+                    break;
+                }
+                if (returnsRows(statement)) {
+                    rowDescription(statement, false);
+                }
+                complete(statement, false);
+            }
+            if (empty) {
+                begin('I');
+                end();
+            }
+            readyForQuery();
+        }
+
+        void parse(ByteBuffer message) {
+            String name = cstring(message);
+            String sql = cstring(message);
+            int[] types = new int[message.getShort()];
+            for (int i = 0; i < types.length; i++) {
+                int oid = message.getInt();
+                types[i] = oid == 0 ? INT4_OID : oid;
+            }
+            statements.put(name, new Statement(sql, types));
+            begin('1');
+            end();
+        }
+
+        void bind(ByteBuffer message) {
+            String portal = cstring(message);
+            Statement statement = statements.get(cstring(message));
+            if (statement == null) {
+                error("26000", "prepared statement does not exist");
+                skipToSync = true;
+                return;
+            }
+            int parameterFormats = message.getShort();
+            message.position(message.position() + 2 * parameterFormats);
+            int parameters = message.getShort();
+            for (int i = 0; i < parameters; i++) {
+                int length = message.getInt();
+                if (length > 0) {
+                    message.position(message.position() + length);
+                }
+            }
+            int formats = message.getShort();
+            boolean binary = formats > 0 && message.getShort() == 1;
+            portals.put(portal, new Portal(statement.sql, binary));
+            begin('2');
+            end();
+        }
+
+        void describe(ByteBuffer message) {
+            byte kind = message.get();
+            String name = cstring(message);
+            String sql;
+            boolean binary = false;
+            if (kind == 'S') {
+                Statement statement = statements.get(name);
+                if (statement == null) {
+                    error("26000", "prepared statement does not exist");
+                    skipToSync = true;
+                    return;
+                }
+                begin('t');
+                out.putShort((short) statement.parameterTypes.length);
+                ensure(4 * statement.parameterTypes.length);
+                for (int type : statement.parameterTypes) {
+                    out.putInt(type);
+                }
+                end();
+                sql = statement.sql;
+            } else {
+                Portal portal = portals.get(name);
+                if (portal == null) {
+                    error("34000", "portal does not exist");
+                    skipToSync = true;
+                    return;
+                }
+                sql = portal.sql;
+                binary = portal.binary;
+            }
+            if (returnsRows(sql)) {
+                rowDescription(sql, binary);
+            } else {
+                begin('n');
+                end();
+            }
+        }
+
+        void execute(ByteBuffer message) {
+            Portal portal = portals.get(cstring(message));
+            if (portal == null) {
+                error("34000", "portal does not exist");
+                skipToSync = true;
+                return;
+            }
+            String sql = portal.sql.trim();
+            if (sql.isEmpty()) {
+                begin('I');
+                end();
+            } else if (!admit(sql)) {
+                skipToSync = true;
+            } else {
+                complete(sql, portal.binary);
+            }
+        }
+
+        /* sends the error and returns false when the statement fails before it runs */
+        boolean admit(String sql) {
+            String command = firstWord(sql);
+            if (status == 'E' && !command.equals("ROLLBACK") && !command.equals("ABORT")
+                    && !command.equals("COMMIT") && !command.equals("END")) {
+                error("25P02", "current transaction is aborted, commands ignored until end of transaction block");
+                return false;
+            }
+            if (command.equals("UPDATE") || command.equals("INSERT") || command.equals("DELETE")) {
+                String sqlState = writeFailure.getAndSet(null);
+                if (sqlState != null) {
+                    error(sqlState, "stub server failed the statement on request");
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /* the rows, if any, then CommandComplete */
+        void complete(String sql, boolean binary) {
+            String command = firstWord(sql);
+            String tag;
+            switch (command) {
+                case "SELECT":
+                case "WITH":
+                case "VALUES":
+                case "SHOW":
+                    int rows = 0;
+                    if (isBalanceQuery(sql)) {
+                        begin('D');
+                        out.putShort((short) 1);
+                        if (binary) {
+                            out.putInt(4);
+                            out.putInt(0);
+                        } else {
+                            out.putInt(1);
+                            out.put((byte) '0');
+                        }
+                        end();
+                        rows = 1;
+                    } else if (command.equals("SHOW")) {
+                        /* text is sent the same in both formats */
+                        begin('D');
+                        out.putShort((short) 1);
+                        byte[] value = setting(sql.substring(4).trim()).getBytes(StandardCharsets.UTF_8);
+                        out.putInt(value.length);
+                        ensure(value.length);
+                        out.put(value);
+                        end();
+                    }
+                    tag = command.equals("SHOW") ? "SHOW" : "SELECT " + rows;
+                    break;
+                case "INSERT":
+                    tag = "INSERT 0 1";
+                    break;
+                case "UPDATE":
+                case "DELETE":
+                    tag = command + " 1";
+                    break;
+                case "BEGIN":
+                case "START":
+                    status = 'T';
+                    tag = "BEGIN";
+                    break;
+                case "COMMIT":
+                case "END":
+                    tag = status == 'E' ? "ROLLBACK" : "COMMIT";
+                    status = 'I';
+                    break;
+                case "ROLLBACK":
+                case "ABORT":
+                    status = 'I';
+                    tag = "ROLLBACK";
+                    break;
+                default:
+                    tag = command;
+            }
+            begin('C');
+            cstring(tag);
+            end();
+        }
+
+        void rowDescription(String sql, boolean binary) {
+            boolean balance = isBalanceQuery(sql);
+            begin('T');
+            out.putShort((short) 1);
+            cstring(balance ? "abalance" : firstWord(sql).equals("SHOW") ? sql.substring(4).trim() : "?column?");
+            ensure(18);
+            out.putInt(0);
+            out.putShort((short) 0);
+            out.putInt(balance ? INT4_OID : TEXT_OID);
+            out.putShort((short) (balance ? 4 : -1));
+            out.putInt(-1);
+            out.putShort((short) (binary ? 1 : 0));
+            end();
+        }
+
+        void readyForQuery() {
+            begin('Z');
+            out.put(status);
+            end();
+        }
+
+        void parameterStatus(String name, String value) {
+            begin('S');
+            cstring(name);
+            cstring(value);
+            end();
+        }
+
+        void error(String sqlState, String message) {
+            begin('E');
+            ensure(2);
+            out.put((byte) 'S');
+            cstring("ERROR");
+            out.put((byte) 'V');
+            cstring("ERROR");
+            out.put((byte) 'C');
+            cstring(sqlState);
+            out.put((byte) 'M');
+            cstring(message);
+            out.put((byte) 0);
+            end();
+            if (status == 'T') {
+                status = 'E';
+            }
+        }
+
+        /* starts a message, leaving room for its length and a few fixed size fields */
+        void begin(char type) {
+            ensure(64);
+            out.put((byte) type);
+            lengthAt = out.position();
+            out.putInt(0);
+        }
+
+        void end() {
+            out.putInt(lengthAt, out.position() - lengthAt);
+        }
+
+        void cstring(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            ensure(bytes.length + 8);
+            out.put(bytes).put((byte) 0);
+        }
+
+        void ensure(int bytes) {
+            if (out.remaining() < bytes) {
+                out = grow(out, Math.max(out.capacity() * 2, out.position() + bytes));
+            }
+        }
+
+        static String cstring(ByteBuffer message) {
+            int start = message.position();
+            int end = start;
+            while (message.get(end) != 0) {
+                end++;
+            }
+            byte[] bytes = new byte[end - start];
+            message.get(bytes);
+            message.get();
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+            ByteBuffer grown = ByteBuffer.allocate(capacity);
+            buffer.flip();
+            grown.put(buffer);
+            return grown;
+        }
+
+        static boolean returnsRows(String sql) {
+            String command = firstWord(sql);
+            return command.equals("SELECT") || command.equals("WITH") || command.equals("VALUES") || command.equals("SHOW");
+        }
+
+        /* the value SHOW reports, enough for the driver to take the stub for a primary */
+        static String setting(String name) {
+            switch (name.toLowerCase(Locale.ROOT)) {
+                case "transaction_read_only":
+                case "default_transaction_read_only":
+                    return "off";
+                case "server_version":
+                    return "14.0";
+                case "server_version_num":
+                    return "140000";
+                default:
+                    return "";
+            }
+        }
+
+        static boolean isBalanceQuery(String sql) {
+            return sql.regionMatches(true, 0, "SELECT", 0, 6) && sql.toLowerCase(Locale.ROOT).contains("abalance");
+        }
+
+        static String firstWord(String sql) {
+            int i = 0;
+            while (i < sql.length() && Character.isWhitespace(sql.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < sql.length() && Character.isLetter(sql.charAt(i))) {
+                i++;
+            }
+            return sql.substring(start, i).toUpperCase(Locale.ROOT);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package rocks.postgres.util;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/*
+ * What the benchmark process itself costs while it runs: garbage collector
+ * activity from the GarbageCollectorMXBeans, process CPU time, heap usage
+ * sampled every 100 ms plus the peak of every heap pool, and per thread
+ * allocation and CPU time through com.sun.management.ThreadMXBean, which
+ * clients read around each transaction.
+ *
+ * The beans' collection time includes the concurrent cycles of ZGC and
+ * Shenandoah, which run next to the application. The pause figures come
+ * from the collectors' notifications instead: every one but the "end of GC
+ * cycle" of a concurrent cycle is a stop the world pause, to the
+ * millisecond the JVM reports it in.
+ *
+ * Created when the measured phase starts, stop() freezes the deltas.
+ */
+public class Telemetry {
+    private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+
+    private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+    private final List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+    private final long[] startCollections;
+    private final long[] startCollectionMillis;
+    private final long startNanos;
+    private final long startCpuNanos;
+    private final Thread sampler;
+    private final AtomicLong pauses = new AtomicLong();
+    private final AtomicLong pauseMillis = new AtomicLong();
+    private final NotificationListener pauseListener = this::collected;
+
+    private volatile long heapMin = Long.MAX_VALUE;
+    private volatile long heapMax;
+
+    private long[] collections;
+    private long[] collectionMillis;
+    private long wallNanos;
+    private long cpuNanos;
+
+    public Telemetry() {
+        startCollections = new long[collectors.size()];
+        startCollectionMillis = new long[collectors.size()];
+        for (int i = 0; i < startCollections.length; i++) {
+            startCollections[i] = Math.max(0, collectors.get(i).getCollectionCount());
+            startCollectionMillis[i] = Math.max(0, collectors.get(i).getCollectionTime());
+        }
+        for (GarbageCollectorMXBean collector : collectors) {
+            if (collector instanceof NotificationEmitter) {
+                ((NotificationEmitter) collector).addNotificationListener(pauseListener, null, null);
+            }
+        }
+        for (MemoryPoolMXBean pool : pools) {
+            pool.resetPeakUsage();
+        }
+        startNanos = System.nanoTime();
+        startCpuNanos = processCpuTime();
+        sampler = new Thread(this::sample, "telemetry");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    /*
+     * Bytes allocated by the calling thread so far, -1 when the JVM can not
+     * tell (not HotSpot, or a virtual thread).
+     */
+    public static long currentThreadAllocatedBytes() {
+        return THREADS != null ? THREADS.getCurrentThreadAllocatedBytes() : -1;
+    }
+
+    /* CPU time of the calling thread in nanoseconds, -1 when unavailable */
+    public static long currentThreadCpuTime() {
+        return THREADS != null && THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1;
+    }
+
+    private void collected(Notification notification, Object handback) {
+        if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+            return;
+        }
+        GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+        if (!"end of GC cycle".equals(info.getGcAction())) {
+            pauses.incrementAndGet();
+            pauseMillis.addAndGet(info.getGcInfo().getDuration());
+        }
+    }
+
+    private void sample() {
+        while (true) {
+            long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            if (used < heapMin) {
+                heapMin = used;
+            }
+            if (used > heapMax) {
+                heapMax = used;
+            }
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+    }
+
+    public void stop() {
+        sampler.interrupt();
+        wallNanos = System.nanoTime() - startNanos;
+        cpuNanos = processCpuTime() - startCpuNanos;
+        collections = new long[collectors.size()];
+        collectionMillis = new long[collectors.size()];
+        for (int i = 0; i < collections.length; i++) {
+            collections[i] = Math.max(0, collectors.get(i).getCollectionCount()) - startCollections[i];
+            collectionMillis[i] = Math.max(0, collectors.get(i).getCollectionTime()) - startCollectionMillis[i];
+        }
+        for (GarbageCollectorMXBean collector : collectors) {
+            if (collector instanceof NotificationEmitter) {
+                try {
+                    ((NotificationEmitter) collector).removeNotificationListener(pauseListener);
+                } catch (ListenerNotFoundException ex) {
+                }
+            }
+        }
+    }
+
+    public long getCollectionCount() {
+        long total = 0;
+        for (long count : collections) {
+            total += count;
+        }
+        return total;
+    }
+
+    public long getCollectionMillis() {
+        long total = 0;
+        for (long millis : collectionMillis) {
+            total += millis;
+        }
+        return total;
+    }
+
+    /* stop the world pauses, without the concurrent cycles */
+    public long getPauseCount() {
+        return pauses.get();
+    }
+
+    public long getPauseMillis() {
+        return pauseMillis.get();
+    }
+
+    /* share of the wall time the application was paused for garbage collection */
+    public double getPauseShare() {
+        return wallNanos > 0 ? getPauseMillis() * 1E6 / wallNanos : 0;
+    }
+
+    public long getProcessCpuNanos() {
+        return cpuNanos;
+    }
+
+    /* average number of cores busy with this process */
+    public double getProcessCpuLoad() {
+        return wallNanos > 0 ? (double) cpuNanos / wallNanos : 0;
+    }
+
+    public long getHeapMin() {
+        return heapMin == Long.MAX_VALUE ? 0 : heapMin;
+    }
+
+    public long getHeapMax() {
+        return heapMax;
+    }
+
+    /* collector name to "collections/milliseconds" */
+    public Map<String, String> getCollectors() {
+        Map<String, String> result = new LinkedHashMap<>();
+        for (int i = 0; i < collections.length; i++) {
+            result.put(collectors.get(i).getName(), collections[i] + "/" + collectionMillis[i]);
+        }
+        return result;
+    }
+
+    /* peak usage in bytes of every heap pool since the start */
+    public Map<String, Long> getHeapPoolPeaks() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (MemoryPoolMXBean pool : pools) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                result.put(pool.getName(), pool.getPeakUsage().getUsed());
+            }
+        }
+        return result;
+    }
+
+    private static long processCpuTime() {
+        java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return Math.max(0, ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime());
+        }
+        return 0;
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        try {
+            if (threads.isThreadAllocatedMemorySupported()) {
+                threads.setThreadAllocatedMemoryEnabled(true);
+            }
+            if (threads.isThreadCpuTimeSupported()) {
+                threads.setThreadCpuTimeEnabled(true);
+            }
+        } catch (UnsupportedOperationException | SecurityException ex) {
+            return null;
+        }
+        return threads;
+    }
+}
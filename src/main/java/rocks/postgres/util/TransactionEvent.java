@@ -0,0 +1,44 @@
+package rocks.postgres.util;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/*
+ * One benchmark transaction in a flight recording. The event duration is
+ * the time the client spent running it, latency is measured like the
+ * report does, from the scheduled start under --rate.
+ */
+@Name("rocks.postgres.Transaction")
+@Label("Transaction")
+@Category("JDBCBench")
+@Description("A transaction run by a benchmark client")
+@StackTrace(false)
+public class TransactionEvent extends jdk.jfr.Event {
+    @Label("Client")
+    public int clientId;
+
+    @Label("Transaction Number")
+    public long transaction;
+
+    @Label("Kind")
+    @Description("tpcb, select-only, tpcb-pipelined or the name of the script")
+    public String kind;
+
+    @Label("Account Key")
+    public int key;
+
+    @Label("Latency")
+    @Timespan(Timespan.MICROSECONDS)
+    public long latency;
+
+    @Label("Schedule Lag")
+    @Timespan(Timespan.MICROSECONDS)
+    public long scheduleLag;
+
+    @Label("Outcome")
+    public String outcome;
+}
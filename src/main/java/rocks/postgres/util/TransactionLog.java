@@ -0,0 +1,305 @@
+package rocks.postgres.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Per transaction log in the format of pgbench --log, one line per
+ * transaction:
+ *
+ *   client_id transaction_no latency_us script_no time_epoch time_us [schedule_lag_us]
+ *
+ * where latency is replaced by "failed" or "skipped" for transactions that
+ * did not complete, or with an aggregate interval one line per interval:
+ *
+ *   interval_start num_transactions sum_latency sum_latency_2 min_latency max_latency
+ *     sum_lag sum_lag_2 min_lag max_lag skipped failed
+ *
+ * Clients hand records to a bounded multi producer ring buffer (Vyukov's
+ * sequenced slots, a CAS on the tail and no locks) and a single writer
+ * thread formats them into a buffer flushed to a FileChannel, so logging
+ * never blocks a client. When the ring is full the record is dropped and
+ * counted rather than making the client wait.
+ */
+public class TransactionLog implements AutoCloseable {
+    public static final int OK = 0;
+    public static final int FAILED = 1;
+    public static final int SKIPPED = 2;
+
+    private static final int STRIDE = 8;
+    private static final int CLIENT = 0;
+    private static final int TRANSACTION = 1;
+    private static final int SCRIPT = 2;
+    private static final int STATUS = 3;
+    private static final int LATENCY = 4;
+    private static final int END = 5;
+    private static final int LAG = 6;
+
+    private final int mask;
+    private final long[] records;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private long head;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+    private final long aggregateMicros;
+    private final Aggregate aggregate;
+    private final boolean logLag;
+    private final Thread writer;
+    private volatile boolean closed;
+    private IOException failure;
+
+    /* wall clock of System.nanoTime() zero, in microseconds */
+    private final long epochOffsetMicros;
+
+    /*
+     * capacity is rounded up to a power of two, aggregateSeconds 0 writes
+     * every record, logLag adds the schedule lag column.
+     */
+    public TransactionLog(Path file, int capacity, int aggregateSeconds, boolean logLag) throws IOException {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = size - 1;
+        records = new long[size * STRIDE];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.aggregateMicros = TimeUnit.SECONDS.toMicros(aggregateSeconds);
+        this.aggregate = aggregateSeconds > 0 ? new Aggregate() : null;
+        this.logLag = logLag;
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        epochOffsetMicros = System.currentTimeMillis() * 1000 - System.nanoTime() / 1000;
+        writer = new Thread(this::drain, "transaction-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /*
+     * Queues one record, endNanos is the System.nanoTime() the transaction
+     * finished at and lagMicros its schedule lag, or -1 without --rate.
+     */
+    public void log(int client, long transaction, int script, int status, long latencyMicros, long endNanos, long lagMicros) {
+        long position = tail.get();
+        while (true) {
+            long sequence = sequences.get((int) position & mask);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (sequence < position) {
+                dropped.increment();
+                return;
+            } else {
+                position = tail.get();
+            }
+        }
+        int slot = (int) position & mask;
+        int base = slot * STRIDE;
+        records[base + CLIENT] = client;
+        records[base + TRANSACTION] = transaction;
+        records[base + SCRIPT] = script;
+        records[base + STATUS] = status;
+        records[base + LATENCY] = latencyMicros;
+        records[base + END] = epochOffsetMicros + endNanos / 1000;
+        records[base + LAG] = lagMicros;
+        /* publishes the fields above to the writer */
+        sequences.set(slot, position + 1);
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                boolean wasClosed = closed;
+                int drained = 0;
+                while (poll()) {
+                    drained++;
+                }
+                if (wasClosed) {
+                    break;
+                }
+                if (drained == 0) {
+                    flush();
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                }
+            }
+            if (aggregate != null && aggregate.start >= 0) {
+                aggregate.write();
+            }
+            flush();
+        } catch (IOException ex) {
+            failure = ex;
+        }
+    }
+
+    private boolean poll() throws IOException {
+        int slot = (int) head & mask;
+        if (sequences.get(slot) != head + 1) {
+            return false;
+        }
+        int base = slot * STRIDE;
+        if (aggregate != null) {
+            aggregate.add(records[base + STATUS], records[base + LATENCY], records[base + END], records[base + LAG]);
+        } else {
+            write(base);
+        }
+        sequences.set(slot, head + mask + 1);
+        head++;
+        return true;
+    }
+
+    private void write(int base) throws IOException {
+        reserve(128);
+        putLong(records[base + CLIENT]);
+        putLong(records[base + TRANSACTION]);
+        int status = (int) records[base + STATUS];
+        if (status == FAILED) {
+            putWord("failed");
+        } else if (status == SKIPPED) {
+            putWord("skipped");
+        } else {
+            putLong(records[base + LATENCY]);
+        }
+        putLong(records[base + SCRIPT]);
+        long end = records[base + END];
+        putLong(end / 1000000);
+        putLong(end % 1000000);
+        if (logLag) {
+            putLong(Math.max(0, records[base + LAG]));
+        }
+        endLine();
+    }
+
+    /* counters of the interval being accumulated, written once a later record shows up */
+    private final class Aggregate {
+        long start = -1;
+        long count, sum, min, max, lagSum, lagMin, lagMax, skipped, failed;
+        double sumSquares, lagSumSquares;
+
+        void add(long status, long latency, long end, long lag) throws IOException {
+            if (start < 0) {
+                start = end - end % aggregateMicros;
+                reset();
+            }
+            while (end >= start + aggregateMicros) {
+                write();
+                start += aggregateMicros;
+                reset();
+            }
+            if (status == SKIPPED) {
+                skipped++;
+                return;
+            }
+            if (status == FAILED) {
+                failed++;
+                return;
+            }
+            count++;
+            sum += latency;
+            sumSquares += (double) latency * latency;
+            min = Math.min(min, latency);
+            max = Math.max(max, latency);
+            if (lag >= 0) {
+                lagSum += lag;
+                lagSumSquares += (double) lag * lag;
+                lagMin = Math.min(lagMin, lag);
+                lagMax = Math.max(lagMax, lag);
+            }
+        }
+
+        void reset() {
+            count = sum = max = lagSum = lagMax = skipped = failed = 0;
+            min = lagMin = Long.MAX_VALUE;
+            sumSquares = lagSumSquares = 0;
+        }
+
+        void write() throws IOException {
+            reserve(256);
+            putLong(start / 1000000);
+            putLong(count);
+            putLong(sum);
+            putLong((long) sumSquares);
+            putLong(count > 0 ? min : 0);
+            putLong(max);
+            putLong(lagSum);
+            putLong((long) lagSumSquares);
+            putLong(lagMin == Long.MAX_VALUE ? 0 : lagMin);
+            putLong(lagMax);
+            putLong(skipped);
+            putLong(failed);
+            endLine();
+        }
+    }
+
+    private void reserve(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    private void putLong(long value) {
+        if (value < 0) {
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        long divisor = 1;
+        while (divisor <= value / 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            buffer.put((byte) ('0' + value / divisor % 10));
+        }
+        buffer.put((byte) ' ');
+    }
+
+    private void putWord(String word) {
+        for (int i = 0; i < word.length(); i++) {
+            buffer.put((byte) word.charAt(i));
+        }
+        buffer.put((byte) ' ');
+    }
+
+    /* replaces the separator after the last field */
+    private void endLine() {
+        buffer.put(buffer.position() - 1, (byte) '\n');
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /*
+     * Writes out everything queued so far and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
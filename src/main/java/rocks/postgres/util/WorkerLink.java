@@ -0,0 +1,130 @@
+package rocks.postgres.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/*
+ * The worker's end of the TCP connection to a coordinator. Messages are a
+ * type byte followed by big endian fields:
+ *
+ *   HELLO     magic, version, pid, clients         worker to coordinator on connect
+ *   START                                          coordinator to every worker once all said hello
+ *   INTERVAL  index, seconds, succeeded, failed,   worker to coordinator after every progress interval
+ *             latency sum in microseconds
+ *   DONE      transactions, failed, skipped,       worker to coordinator after the run
+ *             late, elapsed seconds, histogram
+ *
+ * Intervals carry the deltas of the interval, so the coordinator can add
+ * them up across workers, and the final latency histogram is merged with
+ * LatencyHistogram.add(), which keeps the percentiles exact to the
+ * histogram's precision rather than averaging the workers' percentiles.
+ */
+public class WorkerLink implements Closeable {
+    public static final byte HELLO = 1;
+    public static final byte START = 2;
+    public static final byte INTERVAL = 3;
+    public static final byte DONE = 4;
+
+    public static final int MAGIC = 0x4A424E43;
+    public static final int VERSION = 1;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    /* address is host:port of the coordinator */
+    public WorkerLink(String address, int clients) throws IOException {
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Coordinator address " + address + " is not host:port");
+        }
+        socket = new Socket();
+        socket.connect(new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))), 10000);
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        out.writeByte(HELLO);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(ProcessHandle.current().pid());
+        out.writeInt(clients);
+        out.flush();
+    }
+
+    /* the barrier: returns once the coordinator has heard from all workers */
+    public void awaitStart() throws IOException {
+        byte type = in.readByte();
+        if (type != START) {
+            throw new IOException("Expected the start signal from the coordinator, got message type " + type);
+        }
+    }
+
+    public synchronized void interval(int index, double seconds, long succeeded, long failed, long latencySumMicros) throws IOException {
+        out.writeByte(INTERVAL);
+        out.writeInt(index);
+        out.writeDouble(seconds);
+        out.writeLong(succeeded);
+        out.writeLong(failed);
+        out.writeLong(latencySumMicros);
+        out.flush();
+    }
+
+    public synchronized void done(long transactions, long failed, long skipped, long late, double elapsed, LatencyHistogram latency) throws IOException {
+        out.writeByte(DONE);
+        out.writeLong(transactions);
+        out.writeLong(failed);
+        out.writeLong(skipped);
+        out.writeLong(late);
+        out.writeDouble(elapsed);
+        latency.writeTo(out);
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    /* an INTERVAL message as the coordinator reads it, after the type byte */
+    public static final class Interval {
+        public final int index;
+        public final double seconds;
+        public final long succeeded;
+        public final long failed;
+        public final long latencySumMicros;
+
+        public Interval(DataInput in) throws IOException {
+            index = in.readInt();
+            seconds = in.readDouble();
+            succeeded = in.readLong();
+            failed = in.readLong();
+            latencySumMicros = in.readLong();
+        }
+    }
+
+    /* a DONE message as the coordinator reads it, after the type byte */
+    public static final class Done {
+        public final long transactions;
+        public final long failed;
+        public final long skipped;
+        public final long late;
+        public final double elapsed;
+        public final LatencyHistogram latency;
+
+        public Done(DataInput in) throws IOException {
+            transactions = in.readLong();
+            failed = in.readLong();
+            skipped = in.readLong();
+            late = in.readLong();
+            elapsed = in.readDouble();
+            latency = LatencyHistogram.readFrom(in);
+        }
+    }
+}
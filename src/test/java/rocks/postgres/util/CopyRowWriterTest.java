@@ -0,0 +1,49 @@
+package rocks.postgres.util;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.postgresql.copy.CopyIn;
+
+
+public class CopyRowWriterTest {
+    final ByteArrayOutputStream copied = new ByteArrayOutputStream();
+
+    CopyIn recordingCopyIn() {
+        return (CopyIn) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{CopyIn.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("writeToCopy")) {
+                        copied.write((byte[]) args[0], (Integer) args[1], (Integer) args[2]);
+                        return null;
+                    }
+                    if (method.getName().equals("endCopy")) {
+                        return 0L;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    @Test
+    public void testFormatsRows() throws Exception {
+        CopyRowWriter writer = new CopyRowWriter(recordingCopyIn(), 1024);
+        writer.field(0).field(-17).field(1234567890123L).endRow();
+        writer.field(9).endRow();
+        writer.finish();
+        Assert.assertEquals("0\t-17\t1234567890123\n9\n", new String(copied.toByteArray(), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testFlushesWhenBufferFills() throws Exception {
+        CopyRowWriter writer = new CopyRowWriter(recordingCopyIn(), 32);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            writer.field(i).field(i / 10).endRow();
+            expected.append(i).append('\t').append(i / 10).append('\n');
+        }
+        writer.finish();
+        Assert.assertEquals(expected.toString(), new String(copied.toByteArray(), StandardCharsets.US_ASCII));
+    }
+}
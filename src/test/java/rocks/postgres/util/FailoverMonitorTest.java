@@ -0,0 +1,114 @@
+package rocks.postgres.util;
+
+import java.sql.SQLException;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class FailoverMonitorTest {
+    static final long SECOND = 1000000000L;
+    static final long START = 5 * SECOND;
+
+    static long at(double seconds) {
+        return START + (long) (seconds * SECOND);
+    }
+
+    /* count transactions of 1 ms spread evenly over [from, to) */
+    static void succeed(FailoverMonitor monitor, double from, double to, int count) {
+        for (int i = 0; i < count; i++) {
+            double end = from + (to - from) * (i + 0.5) / count;
+            monitor.success(at(end - 0.001), at(end));
+        }
+    }
+
+    @Test
+    public void testClassify() {
+        Assert.assertEquals(FailoverMonitor.Failure.FAILOVER_SUCCEEDED, FailoverMonitor.classify(new SQLException("switched", "08S02")));
+        Assert.assertEquals(FailoverMonitor.Failure.OUTCOME_UNKNOWN, FailoverMonitor.classify(new SQLException("unknown", "08007")));
+        Assert.assertEquals(FailoverMonitor.Failure.CONNECTION_LOST, FailoverMonitor.classify(new SQLException("refused", "08001")));
+        Assert.assertEquals(FailoverMonitor.Failure.CONNECTION_LOST, FailoverMonitor.classify(new SQLException("closed", "08003")));
+        Assert.assertEquals(FailoverMonitor.Failure.OTHER, FailoverMonitor.classify(new SQLException("deadlock", "40P01")));
+        Assert.assertEquals(FailoverMonitor.Failure.OTHER, FailoverMonitor.classify(new SQLException("no state")));
+        SQLException wrapped = new SQLException("wrapped", null, new SQLException("io", "08006"));
+        Assert.assertEquals(FailoverMonitor.Failure.CONNECTION_LOST, FailoverMonitor.classify(wrapped));
+    }
+
+    @Test
+    public void testRecovery() {
+        FailoverMonitor monitor = new FailoverMonitor(START, 60);
+        succeed(monitor, 0, 10.5, 1050);
+        monitor.failure(at(10.5), FailoverMonitor.Failure.CONNECTION_LOST);
+        monitor.failure(at(10.6), FailoverMonitor.Failure.CONNECTION_LOST);
+        monitor.failure(at(11.9), FailoverMonitor.Failure.FAILOVER_SUCCEEDED);
+        succeed(monitor, 12.2, 13, 50);
+        succeed(monitor, 13, 16, 300);
+
+        List<FailoverMonitor.Event> events = monitor.getEvents();
+        Assert.assertEquals(1, events.size());
+        FailoverMonitor.Event event = events.get(0);
+        Assert.assertEquals(10.5, event.getStartSeconds(), 1e-9);
+        Assert.assertEquals(10, event.getStartSecond());
+        Assert.assertEquals(12, event.getRecoverySecond());
+        Assert.assertEquals(3, event.getFailed());
+        Assert.assertEquals(2, event.getCount(FailoverMonitor.Failure.CONNECTION_LOST));
+        Assert.assertEquals(1, event.getCount(FailoverMonitor.Failure.FAILOVER_SUCCEEDED));
+        Assert.assertEquals(12.208 - 10.5, event.getTimeToFirstSuccess(), 1e-3);
+
+        long[] perSecond = monitor.getSuccessesPerSecond(at(16.5));
+        Assert.assertEquals(17, perSecond.length);
+        Assert.assertEquals(100, perSecond[9]);
+        Assert.assertEquals(50, perSecond[10]);
+        Assert.assertEquals(0, perSecond[11]);
+        Assert.assertEquals(50, perSecond[12]);
+        Assert.assertEquals(100.0, event.getBaselineTps(perSecond), 1e-9);
+        /* second 13 is the first one back at the baseline */
+        Assert.assertEquals(2.5, monitor.timeToFullThroughput(event, perSecond, 0.9), 1e-9);
+    }
+
+    @Test
+    public void testInFlightSuccessDoesNotEndOutage() {
+        FailoverMonitor monitor = new FailoverMonitor(START, 60);
+        succeed(monitor, 0, 3, 300);
+        monitor.failure(at(3.0), FailoverMonitor.Failure.CONNECTION_LOST);
+        /* started before the failure, finished after it */
+        monitor.success(at(2.9), at(3.1));
+        Assert.assertEquals(-1, monitor.getEvents().get(0).getTimeToFirstSuccess(), 0);
+        Assert.assertEquals(-1, monitor.timeToFullThroughput(monitor.getEvents().get(0), monitor.getSuccessesPerSecond(at(4)), 0.9), 0);
+    }
+
+    @Test
+    public void testRunLongerThanExpected() {
+        FailoverMonitor monitor = new FailoverMonitor(START, 60);
+        succeed(monitor, 3590, 3700, 11000);
+        monitor.failure(at(3700.5), FailoverMonitor.Failure.CONNECTION_LOST);
+        succeed(monitor, 3702, 3710, 800);
+
+        long[] perSecond = monitor.getSuccessesPerSecond(at(3710.5));
+        Assert.assertEquals(3711, perSecond.length);
+        Assert.assertEquals(0, perSecond[3589]);
+        Assert.assertEquals(100, perSecond[3699]);
+        Assert.assertEquals(100, perSecond[3702]);
+        FailoverMonitor.Event event = monitor.getEvents().get(0);
+        Assert.assertEquals(3700, event.getStartSecond());
+        Assert.assertEquals(3702, event.getRecoverySecond());
+        Assert.assertEquals(100.0, event.getBaselineTps(perSecond), 1e-9);
+        Assert.assertEquals(1.5, monitor.timeToFullThroughput(event, perSecond, 0.9), 1e-9);
+    }
+
+    @Test
+    public void testSeparateEvents() {
+        FailoverMonitor monitor = new FailoverMonitor(START, 60);
+        monitor.failure(at(1), FailoverMonitor.Failure.OTHER);
+        Assert.assertTrue(monitor.getEvents().isEmpty());
+        monitor.failure(at(2), FailoverMonitor.Failure.CONNECTION_LOST);
+        monitor.failure(at(4), FailoverMonitor.Failure.OTHER);
+        succeed(monitor, 4.5, 5, 10);
+        monitor.failure(at(20), FailoverMonitor.Failure.OUTCOME_UNKNOWN);
+        List<FailoverMonitor.Event> events = monitor.getEvents();
+        Assert.assertEquals(2, events.size());
+        Assert.assertEquals(2, events.get(0).getFailed());
+        Assert.assertEquals(1, events.get(1).getCount(FailoverMonitor.Failure.OUTCOME_UNKNOWN));
+    }
+}
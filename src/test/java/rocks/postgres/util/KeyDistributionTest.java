@@ -0,0 +1,71 @@
+package rocks.postgres.util;
+
+import java.util.SplittableRandom;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class KeyDistributionTest {
+    final SplittableRandom random = new SplittableRandom(7);
+
+    long[] histogram(KeyDistribution distribution, int n, int draws) {
+        long[] counts = new long[n];
+        for (int i = 0; i < draws; i++) {
+            long key = distribution.next(random);
+            Assert.assertTrue("key " + key + " out of range", key >= 0 && key < n);
+            counts[(int) key]++;
+        }
+        return counts;
+    }
+
+    @Test
+    public void testUniform() {
+        long[] counts = histogram(KeyDistribution.create("uniform", 10), 10, 100000);
+        for (long count : counts) {
+            Assert.assertEquals(10000, count, 500);
+        }
+    }
+
+    @Test
+    public void testGaussianIsCentered() {
+        long[] counts = histogram(KeyDistribution.create("gaussian:5", 100), 100, 100000);
+        Assert.assertTrue(counts[50] > 10 * counts[5]);
+        Assert.assertTrue(counts[49] > 10 * counts[95]);
+    }
+
+    @Test
+    public void testExponentialFavoursLowKeys() {
+        long[] counts = histogram(KeyDistribution.create("exponential:3", 100), 100, 100000);
+        Assert.assertTrue(counts[0] > counts[50]);
+        Assert.assertTrue(counts[50] > counts[99]);
+    }
+
+    @Test
+    public void testZipfian() {
+        long[] counts = histogram(KeyDistribution.create("zipfian:1.1", 1000), 1000, 200000);
+        // with s = 1.1 key 0 is drawn 2^1.1 times as often as key 1
+        Assert.assertEquals(Math.pow(2, 1.1), (double) counts[0] / counts[1], 0.15);
+        Assert.assertTrue(counts[1] > counts[10]);
+        Assert.assertTrue(counts[10] > counts[500]);
+    }
+
+    @Test
+    public void testLargeZipfianRange() {
+        KeyDistribution distribution = KeyDistribution.create("zipfian:0.99", 1000000000L);
+        for (int i = 0; i < 10000; i++) {
+            long key = distribution.next(random);
+            Assert.assertTrue(key >= 0 && key < 1000000000L);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsUnknownDistribution() {
+        KeyDistribution.create("pareto:1", 10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNarrowGaussian() {
+        KeyDistribution.create("gaussian:1", 10);
+    }
+}
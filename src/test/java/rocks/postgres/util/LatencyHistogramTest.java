@@ -0,0 +1,85 @@
+package rocks.postgres.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class LatencyHistogramTest {
+    LatencyHistogram histogram;
+
+    @Before
+    public void setup() {
+        histogram = new LatencyHistogram();
+    }
+
+    @Test
+    public void testSmallValuesAreExact() {
+        for (int i = 1; i <= 100; i++) {
+            histogram.recordValue(i);
+        }
+        Assert.assertEquals(100, histogram.getTotalCount());
+        Assert.assertEquals(1, histogram.getMin());
+        Assert.assertEquals(100, histogram.getMax());
+        Assert.assertEquals(50, histogram.getValueAtPercentile(50));
+        Assert.assertEquals(99, histogram.getValueAtPercentile(99));
+        Assert.assertEquals(50.5, histogram.getMean(), 0.0001);
+    }
+
+    @Test
+    public void testLargeValuesWithinPrecision() {
+        for (int i = 1; i <= 10000; i++) {
+            histogram.recordValue(i * 1000L);
+        }
+        long p90 = histogram.getValueAtPercentile(90);
+        Assert.assertEquals(9000000.0, p90, 9000000.0 / 128);
+        Assert.assertEquals(10000000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testAdd() {
+        LatencyHistogram other = new LatencyHistogram();
+        histogram.recordValue(10);
+        other.recordValue(1000);
+        other.recordValue(5);
+        histogram.add(other);
+        Assert.assertEquals(3, histogram.getTotalCount());
+        Assert.assertEquals(5, histogram.getMin());
+        Assert.assertEquals(1000, histogram.getMax());
+        Assert.assertEquals(10, histogram.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        for (int i = 1; i <= 1000; i++) {
+            histogram.recordValue(i * 37L);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        histogram.writeTo(new DataOutputStream(bytes));
+        LatencyHistogram copy = LatencyHistogram.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        Assert.assertEquals(histogram.getTotalCount(), copy.getTotalCount());
+        Assert.assertEquals(histogram.getMin(), copy.getMin());
+        Assert.assertEquals(histogram.getMax(), copy.getMax());
+        Assert.assertEquals(histogram.getMean(), copy.getMean(), 0);
+        Assert.assertEquals(histogram.getValueAtPercentile(99), copy.getValueAtPercentile(99));
+        /* an empty histogram stays empty and merges as a no-op */
+        bytes.reset();
+        new LatencyHistogram().writeTo(new DataOutputStream(bytes));
+        copy.add(LatencyHistogram.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+        Assert.assertEquals(histogram.getMin(), copy.getMin());
+        Assert.assertEquals(1000, copy.getTotalCount());
+    }
+
+    @Test
+    public void testClampsOutOfRange() {
+        histogram.recordValue(-1);
+        histogram.recordValue(Long.MAX_VALUE);
+        Assert.assertEquals(0, histogram.getMin());
+        Assert.assertEquals(LatencyHistogram.HIGHEST_TRACKABLE_VALUE, histogram.getMax());
+    }
+}
@@ -41,5 +41,23 @@ public class QueryUtilsTest {
         String preparedQuery = queryUtils.prepareInsertHistoryQuery(1,2,3,4);
         Assert.assertEquals("INSERT INTO pgbench_history(tid, bid, aid, delta) values (1,2,3,4)", preparedQuery);
     }
+    @Test
+    public void testPrepareRepeatedly() {
+        String first = queryUtils.prepareUpdateAccountsQuery(1, 2);
+        String second = queryUtils.prepareUpdateAccountsQuery(-300, 123456);
+        Assert.assertEquals("update pgbench_accounts SET abalance = abalance + 1 WHERE aid = 2", first);
+        Assert.assertEquals("update pgbench_accounts SET abalance = abalance + -300 WHERE aid = 123456", second);
+    }
+    @Test
+    public void testPrepareTpcbPipelineQuery() {
+        String preparedQuery = queryUtils.prepareTpcbPipelineQuery(55, 99, 10, -7);
+        Assert.assertEquals("BEGIN;"
+                + "update pgbench_accounts SET abalance = abalance + -7 WHERE aid = 55;"
+                + "SELECT abalance FROM pgbench_accounts WHERE  aid = 55;"
+                + "UPDATE pgbench_tellers SET tbalance = tbalance + -7 WHERE  tid = 10;"
+                + "UPDATE pgbench_branches SET bbalance = bbalance + -7 WHERE  bid = 99;"
+                + "INSERT INTO pgbench_history(tid, bid, aid, delta) values (10,99,55,-7);"
+                + "END", preparedQuery);
+    }
 
 }
\ No newline at end of file
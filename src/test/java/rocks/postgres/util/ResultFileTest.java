@@ -0,0 +1,72 @@
+package rocks.postgres.util;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class ResultFileTest {
+
+    Map<String, Object> result() {
+        Map<String, Object> config = new LinkedHashMap<>();
+        config.put("clients", 8);
+        config.put("url", "jdbc:postgresql://host:5432/db?a=1,b=\"2\"");
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("config", config);
+        result.put("tps", 1234.5);
+        result.put("failed", 0L);
+        result.put("intervals", Map.of("tps", Arrays.asList(1200.0, 1250.5, 1253.0)));
+        return result;
+    }
+
+    void assertReadsBack(Path file) throws Exception {
+        ResultFile.write(file, result());
+        Map<String, Object> read = ResultFile.read(file);
+        Files.delete(file);
+        Assert.assertEquals(8, ResultFile.number(read, "config.clients"), 0);
+        Assert.assertEquals("jdbc:postgresql://host:5432/db?a=1,b=\"2\"", read.get("config.url"));
+        Assert.assertEquals(1234.5, ResultFile.number(read, "tps"), 0);
+        Assert.assertEquals(0, ResultFile.number(read, "failed"), 0);
+        Assert.assertArrayEquals(new double[]{1200.0, 1250.5, 1253.0}, ResultFile.numbers(read, "intervals.tps"), 0);
+        Assert.assertTrue(Double.isNaN(ResultFile.number(read, "missing")));
+        Assert.assertEquals(0, ResultFile.numbers(read, "missing").length);
+    }
+
+    @Test
+    public void testJson() throws Exception {
+        assertReadsBack(Files.createTempFile("result", ".json"));
+    }
+
+    @Test
+    public void testCsv() throws Exception {
+        assertReadsBack(Files.createTempFile("result", ".csv"));
+    }
+
+    @Test
+    public void testJsonParse() throws Exception {
+        Object parsed = Json.parse("{\"a\": [1, 2.5e1, -3], \"b\": {\"c\": \"x\\ty\\u0041\"}, \"d\": [true, false, null], \"e\": {}}");
+        Map<?, ?> map = (Map<?, ?>) parsed;
+        Assert.assertEquals(Arrays.asList(1L, 25.0, -3L), map.get("a"));
+        Assert.assertEquals("x\tyA", ((Map<?, ?>) map.get("b")).get("c"));
+        Assert.assertEquals(Arrays.asList(true, false, null), map.get("d"));
+        Assert.assertTrue(((Map<?, ?>) map.get("e")).isEmpty());
+        // whole doubles are written without a fraction, so compare the text
+        Assert.assertEquals(Json.write(parsed), Json.write(Json.parse(Json.write(parsed))));
+    }
+
+    @Test(expected = ParseException.class)
+    public void testJsonTrailingGarbage() throws Exception {
+        Json.parse("{\"a\": 1} x");
+    }
+
+    @Test(expected = ParseException.class)
+    public void testJsonUnterminatedArray() throws Exception {
+        Json.parse("[1, 2");
+    }
+}
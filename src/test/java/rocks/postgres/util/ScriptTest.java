@@ -0,0 +1,144 @@
+package rocks.postgres.util;
+
+import java.io.StringReader;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class ScriptTest {
+    final List<String> executed = new ArrayList<>();
+    int preparedStatements;
+    int closedStatements;
+
+    /* a connection whose statements just log the SQL and the bound parameters */
+    Connection recordingConnection() {
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("isClosed")) {
+                        return false;
+                    }
+                    if (!method.getName().equals("prepareStatement")) {
+                        return null;
+                    }
+                    preparedStatements++;
+                    String sql = (String) args[0];
+                    Map<Integer, Object> params = new HashMap<>();
+                    return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{PreparedStatement.class},
+                            (statement, call, callArgs) -> {
+                                if (call.getName().equals("setLong")) {
+                                    params.put((Integer) callArgs[0], callArgs[1]);
+                                } else if (call.getName().equals("execute")) {
+                                    executed.add(sql + " " + params.values());
+                                    return false;
+                                } else if (call.getName().equals("close")) {
+                                    closedStatements++;
+                                }
+                                return null;
+                            });
+                });
+    }
+
+    @Test
+    public void testExpressions() throws Exception {
+        Map<String, Integer> variables = new HashMap<>();
+        variables.put("scale", 0);
+        long[] values = {10};
+        long[] stack = new long[8];
+        SplittableRandom random = new SplittableRandom(42);
+
+        Assert.assertEquals(7, ScriptExpression.compile("1 + 2 * 3", variables).evaluate(values, stack, random));
+        Assert.assertEquals(9, ScriptExpression.compile("(1 + 2) * 3", variables).evaluate(values, stack, random));
+        Assert.assertEquals(-1000000, ScriptExpression.compile("-100000 * :scale", variables).evaluate(values, stack, random));
+        Assert.assertEquals(3, ScriptExpression.compile("max(min(5, 3), abs(-2)) % 4", variables).evaluate(values, stack, random));
+        ScriptExpression randomExpression = ScriptExpression.compile("random(1, 100000 * :scale)", variables);
+        for (int i = 0; i < 1000; i++) {
+            long value = randomExpression.evaluate(values, stack, random);
+            Assert.assertTrue(value >= 1 && value <= 1000000);
+        }
+    }
+
+    @Test(expected = ParseException.class)
+    public void testUndefinedVariable() throws Exception {
+        ScriptExpression.compile(":aid + 1", new HashMap<>());
+    }
+
+    @Test(expected = ParseException.class)
+    public void testTrailingGarbage() throws Exception {
+        ScriptExpression.compile("1 + 2)", new HashMap<>());
+    }
+
+    @Test
+    public void testRunsScript() throws Exception {
+        String text = "-- select only\n"
+                + "\\set aid 5 * :scale\n"
+                + "\\set delta :aid - 1\n"
+                + "SELECT abalance::int FROM pgbench_accounts\n"
+                + "  WHERE aid = :aid AND filler <> ':x';\n"
+                + "UPDATE pgbench_accounts SET abalance = abalance + :delta WHERE aid = :aid;\n";
+        Script script = Script.parse("test", 3, new StringReader(text));
+        Assert.assertEquals(3, script.getWeight());
+
+        script.newSession(0, 2).execute(recordingConnection(), new SplittableRandom(1));
+        Assert.assertEquals(2, executed.size());
+        Assert.assertEquals("SELECT abalance::int FROM pgbench_accounts\n  WHERE aid = ? AND filler <> ':x'; [10]", executed.get(0));
+        Assert.assertEquals("UPDATE pgbench_accounts SET abalance = abalance + ? WHERE aid = ?; [9, 10]", executed.get(1));
+    }
+
+    @Test
+    public void testRetryRepeatsTheTransaction() throws Exception {
+        String text = "\\set aid random(1, 1000000000)\n"
+                + "\\set delta random(-5000, 5000)\n"
+                + "UPDATE pgbench_accounts SET abalance = abalance + :delta WHERE aid = :aid;\n";
+        Script.Session session = Script.parse("test", 1, new StringReader(text)).newSession(0, 1);
+        SplittableRandom random = new SplittableRandom(7);
+        Connection con = recordingConnection();
+        session.execute(con, random);
+        session.retry(con);
+        session.retry(con);
+        session.execute(con, random);
+        Assert.assertEquals(4, executed.size());
+        Assert.assertEquals(executed.get(0), executed.get(1));
+        Assert.assertEquals(executed.get(0), executed.get(2));
+        Assert.assertNotEquals(executed.get(0), executed.get(3));
+    }
+
+    @Test
+    public void testStatementsArePreparedOncePerConnection() throws Exception {
+        String text = "\\set aid random(1, 100)\n"
+                + "SELECT abalance FROM pgbench_accounts WHERE aid = :aid;\n"
+                + "UPDATE pgbench_accounts SET abalance = abalance + 1 WHERE aid = :aid;\n";
+        Script.Session session = Script.parse("test", 1, new StringReader(text)).newSession(0, 1);
+        SplittableRandom random = new SplittableRandom(3);
+        /* like a client borrowing pooled connections in turn */
+        Connection first = recordingConnection();
+        Connection second = recordingConnection();
+        for (int i = 0; i < 3; i++) {
+            session.execute(first, random);
+            session.execute(second, random);
+        }
+        Assert.assertEquals(12, executed.size());
+        Assert.assertEquals(4, preparedStatements);
+        /* the other connection may be in use by another client, its statements are left alone */
+        Assert.assertEquals(0, closedStatements);
+
+        session.reset();
+        session.execute(first, random);
+        Assert.assertEquals(6, preparedStatements);
+        Assert.assertEquals(0, closedStatements);
+    }
+
+    @Test(expected = ParseException.class)
+    public void testInvalidMetaCommand() throws Exception {
+        Script.parse("test", 1, new StringReader("\\gset foo\n"));
+    }
+}
@@ -0,0 +1,41 @@
+package rocks.postgres.util;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class ServerMonitorTest {
+
+    @Test
+    public void testMissingViewsAreNoted() throws Exception {
+        try (StubServer server = new StubServer(0, 1)) {
+            Properties props = new Properties();
+            props.setProperty("user", "bench");
+            props.setProperty("preferQueryMode", "simple");
+            try (Connection con = DriverManager.getConnection("jdbc:postgresql://127.0.0.1:" + server.getPort() + "/pgbench", props)) {
+                ServerMonitor monitor = new ServerMonitor(con, TimeUnit.MILLISECONDS.toNanos(100), false);
+                monitor.start(System.nanoTime());
+                Thread.sleep(450);
+                monitor.stop();
+
+                List<ServerMonitor.Sample> samples = monitor.getSamples();
+                Assert.assertTrue(samples.size() >= 2);
+                ServerMonitor.Sample sample = samples.get(0);
+                Assert.assertEquals(0.1, sample.seconds, 1e-9);
+                Assert.assertEquals(0, sample.commits, 0);
+                Assert.assertTrue(Double.isNaN(sample.hitRatio));
+                Assert.assertEquals("-", sample.topWaits(3));
+                /* the stub answers the views with no rows and has no extensions */
+                Assert.assertTrue(monitor.getNotes().contains("pg_stat_database: no rows"));
+                Assert.assertTrue(monitor.getNotes().contains("pg_stat_statements: not installed"));
+                Assert.assertTrue(monitor.getTopStatements(5).isEmpty());
+            }
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package rocks.postgres.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class StatisticsTest {
+
+    @Test
+    public void testWelchTTest() {
+        // the first example on the Wikipedia page for Welch's t-test
+        double[] a = {27.5, 21.0, 19.0, 23.6, 17.0, 17.9, 16.9, 20.1, 21.9, 22.6, 23.1, 19.6, 19.0, 21.7, 21.4};
+        double[] b = {27.1, 22.0, 20.8, 23.4, 23.4, 23.5, 25.8, 22.0, 24.8, 20.2, 21.9, 22.1, 22.9, 20.5, 24.4};
+        Assert.assertEquals(0.021378, Statistics.welchTTest(a, b), 1e-6);
+        Assert.assertEquals(0.021378, Statistics.welchTTest(b, a), 1e-6);
+    }
+
+    @Test
+    public void testIdenticalSamplesAreNotSignificant() {
+        double[] a = {100, 101, 99, 100, 102};
+        Assert.assertEquals(1.0, Statistics.welchTTest(a, a.clone()), 1e-9);
+    }
+
+    @Test
+    public void testTooFewSamples() {
+        Assert.assertTrue(Double.isNaN(Statistics.welchTTest(new double[]{1}, new double[]{1, 2, 3})));
+    }
+
+    @Test
+    public void testMeanAndVariance() {
+        double[] values = {2, 4, 4, 4, 5, 5, 7, 9};
+        Assert.assertEquals(5.0, Statistics.mean(values), 1e-12);
+        Assert.assertEquals(32.0 / 7, Statistics.variance(values), 1e-12);
+    }
+}
@@ -0,0 +1,132 @@
+package rocks.postgres.util;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class StubServerTest {
+    StubServer server;
+
+    @Before
+    public void setup() throws Exception {
+        server = new StubServer(0, 2);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        server.close();
+    }
+
+    Connection connect(String queryMode, int prepareThreshold, boolean binary) throws Exception {
+        Properties props = new Properties();
+        props.setProperty("user", "bench");
+        props.setProperty("preferQueryMode", queryMode);
+        props.setProperty("prepareThreshold", Integer.toString(prepareThreshold));
+        props.setProperty("binaryTransfer", Boolean.toString(binary));
+        return DriverManager.getConnection("jdbc:postgresql://127.0.0.1:" + server.getPort() + "/pgbench", props);
+    }
+
+    void runTransactions(Connection con, boolean prepared, boolean binary) throws Exception {
+        QueryUtils queryUtils = new QueryUtils(true, prepared, binary);
+        con.setAutoCommit(false);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(queryUtils.executeUpdateAccounts(con, 5, 1));
+            Assert.assertEquals(0, queryUtils.executeSelectQuery(con, 1));
+            Assert.assertTrue(queryUtils.executeUpdateTellersQuery(con, 5, 1));
+            Assert.assertTrue(queryUtils.executeUpdateBranchesQuery(con, 5, 1));
+            Assert.assertTrue(queryUtils.executeInsertHistory(con, 1, 1, 1, 5));
+            con.commit();
+        }
+    }
+
+    @Test
+    public void testSimpleProtocol() throws Exception {
+        try (Connection con = connect("simple", 0, false)) {
+            runTransactions(con, false, false);
+        }
+    }
+
+    @Test
+    public void testExtendedProtocol() throws Exception {
+        try (Connection con = connect("extended", 0, false)) {
+            runTransactions(con, true, false);
+        }
+    }
+
+    @Test
+    public void testPreparedAndBinaryProtocols() throws Exception {
+        try (Connection con = connect("extended", 1, false)) {
+            runTransactions(con, true, false);
+        }
+        try (Connection con = connect("extended", -1, true)) {
+            runTransactions(con, true, true);
+        }
+    }
+
+    @Test
+    public void testPipelinedTransaction() throws Exception {
+        try (Connection con = connect("simple", 0, false)) {
+            Assert.assertEquals(0, new QueryUtils(true, false, false).executeTpcbPipelined(con, 1, 1, 1, 5));
+        }
+    }
+
+    void failPipelined(QueryUtils queryUtils, Connection con, String sqlState) {
+        try {
+            queryUtils.executeTpcbPipelined(con, 1, 1, 1, 5);
+            Assert.fail("expected " + sqlState);
+        } catch (SQLException ex) {
+            Assert.assertEquals(sqlState, ex.getSQLState());
+        }
+    }
+
+    @Test
+    public void testFailedPipelinedTransactionIsRolledBack() throws Exception {
+        try (Connection con = connect("simple", 0, false)) {
+            QueryUtils queryUtils = new QueryUtils(true, false, false);
+            server.failNextWrite("40001");
+            failPipelined(queryUtils, con, "40001");
+            /* the session is left in the aborted transaction block */
+            failPipelined(queryUtils, con, "25P02");
+            QueryUtils.rollback(con);
+            Assert.assertEquals(0, queryUtils.executeTpcbPipelined(con, 1, 1, 1, 5));
+        }
+        try (Connection con = connect("extended", 1, false)) {
+            QueryUtils queryUtils = new QueryUtils(true, true, false);
+            server.failNextWrite("40001");
+            failPipelined(queryUtils, con, "40001");
+            QueryUtils.rollback(con);
+            Assert.assertEquals(0, queryUtils.executeTpcbPipelined(con, 1, 1, 1, 5));
+            /* nothing to roll back, nothing is sent */
+            QueryUtils.rollback(con);
+            Assert.assertEquals(0, queryUtils.executeTpcbPipelined(con, 1, 1, 1, 5));
+        }
+    }
+
+    @Test
+    public void testReportsPrimary() throws Exception {
+        try (Connection con = connect("simple", 0, false);
+             Statement statement = con.createStatement();
+             ResultSet rs = statement.executeQuery("SHOW transaction_read_only")) {
+            Assert.assertTrue(rs.next());
+            Assert.assertEquals("off", rs.getString(1));
+        }
+    }
+
+    @Test
+    public void testUnknownSelectReturnsNoRows() throws Exception {
+        try (Connection con = connect("extended", 0, false);
+             Statement statement = con.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT count(*) FROM pgbench_branches")) {
+            Assert.assertFalse(rs.next());
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package rocks.postgres.util;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class TransactionLogTest {
+
+    @Test
+    public void testWritesOneLinePerTransaction() throws Exception {
+        Path file = Files.createTempFile("transaction-log", ".txt");
+        try (TransactionLog log = new TransactionLog(file, 1024, 0, true)) {
+            long now = System.nanoTime();
+            log.log(3, 0, 0, TransactionLog.OK, 1500, now, 20);
+            log.log(3, 1, 1, TransactionLog.FAILED, 900, now, 0);
+            log.log(4, 0, 0, TransactionLog.SKIPPED, 0, now, 12000);
+        }
+        List<String> lines = Files.readAllLines(file);
+        Files.delete(file);
+        Assert.assertEquals(3, lines.size());
+        String[] fields = lines.get(0).split(" ");
+        Assert.assertEquals(7, fields.length);
+        Assert.assertEquals("3", fields[0]);
+        Assert.assertEquals("1500", fields[2]);
+        Assert.assertEquals("20", fields[6]);
+        long epochSeconds = Long.parseLong(fields[4]);
+        Assert.assertEquals(System.currentTimeMillis() / 1000.0, epochSeconds, 5);
+        Assert.assertTrue(lines.get(1).startsWith("3 1 failed 1 "));
+        Assert.assertTrue(lines.get(2).startsWith("4 0 skipped 0 "));
+    }
+
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        Path file = Files.createTempFile("transaction-log", ".txt");
+        int clients = 4;
+        int perClient = 20000;
+        long dropped;
+        try (TransactionLog log = new TransactionLog(file, 1 << 16, 0, false)) {
+            Thread[] threads = new Thread[clients];
+            for (int c = 0; c < clients; c++) {
+                int client = c;
+                threads[c] = new Thread(() -> {
+                    for (int i = 0; i < perClient; i++) {
+                        log.log(client, i, 0, TransactionLog.OK, i, System.nanoTime(), -1);
+                    }
+                });
+                threads[c].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            dropped = log.getDropped();
+        }
+        List<String> lines = Files.readAllLines(file);
+        Files.delete(file);
+        Assert.assertEquals(clients * perClient, lines.size() + dropped);
+        for (String line : lines) {
+            String[] fields = line.split(" ");
+            Assert.assertEquals(6, fields.length);
+            Assert.assertEquals(fields[1], fields[2]);
+        }
+    }
+
+    @Test
+    public void testAggregatesPerInterval() throws Exception {
+        Path file = Files.createTempFile("transaction-log", ".txt");
+        try (TransactionLog log = new TransactionLog(file, 1024, 1, false)) {
+            long now = System.nanoTime();
+            log.log(0, 0, 0, TransactionLog.OK, 100, now, -1);
+            log.log(0, 1, 0, TransactionLog.OK, 300, now, -1);
+            log.log(0, 2, 0, TransactionLog.FAILED, 50, now, -1);
+            log.log(0, 3, 0, TransactionLog.OK, 200, now + TimeUnit.SECONDS.toNanos(2), -1);
+        }
+        List<String> lines = Files.readAllLines(file);
+        Files.delete(file);
+        /* the interval in between had no transactions but is still reported */
+        Assert.assertEquals(3, lines.size());
+        String[] first = lines.get(0).split(" ");
+        Assert.assertEquals(12, first.length);
+        Assert.assertEquals("2", first[1]);
+        Assert.assertEquals("400", first[2]);
+        Assert.assertEquals("100000", first[3]);
+        Assert.assertEquals("100", first[4]);
+        Assert.assertEquals("300", first[5]);
+        Assert.assertEquals("1", first[11]);
+        Assert.assertEquals("0", lines.get(1).split(" ")[1]);
+        Assert.assertEquals("1", lines.get(2).split(" ")[1]);
+        Assert.assertEquals(Long.parseLong(first[0]) + 2, Long.parseLong(lines.get(2).split(" ")[0]));
+    }
+}
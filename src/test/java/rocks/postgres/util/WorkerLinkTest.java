@@ -0,0 +1,64 @@
+package rocks.postgres.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class WorkerLinkTest {
+
+    @Test
+    public void testConversation() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            LatencyHistogram latency = new LatencyHistogram();
+            latency.recordValue(100);
+            latency.recordValue(300);
+            Thread worker = new Thread(() -> {
+                try (WorkerLink link = new WorkerLink("127.0.0.1:" + server.getLocalPort(), 8)) {
+                    link.awaitStart();
+                    link.interval(0, 1.0, 1000, 2, 500000);
+                    link.done(1002, 2, 0, 1, 1.5, latency);
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+            });
+            worker.start();
+
+            try (Socket socket = server.accept()) {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                Assert.assertEquals(WorkerLink.HELLO, in.readByte());
+                Assert.assertEquals(WorkerLink.MAGIC, in.readInt());
+                Assert.assertEquals(WorkerLink.VERSION, in.readInt());
+                Assert.assertEquals(ProcessHandle.current().pid(), in.readLong());
+                Assert.assertEquals(8, in.readInt());
+                new DataOutputStream(socket.getOutputStream()).writeByte(WorkerLink.START);
+
+                Assert.assertEquals(WorkerLink.INTERVAL, in.readByte());
+                WorkerLink.Interval interval = new WorkerLink.Interval(in);
+                Assert.assertEquals(0, interval.index);
+                Assert.assertEquals(1000, interval.succeeded);
+                Assert.assertEquals(2, interval.failed);
+                Assert.assertEquals(500000, interval.latencySumMicros);
+
+                Assert.assertEquals(WorkerLink.DONE, in.readByte());
+                WorkerLink.Done done = new WorkerLink.Done(in);
+                Assert.assertEquals(1002, done.transactions);
+                Assert.assertEquals(1, done.late);
+                Assert.assertEquals(1.5, done.elapsed, 0);
+                Assert.assertEquals(2, done.latency.getTotalCount());
+                Assert.assertEquals(300, done.latency.getMax());
+            }
+            worker.join();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAddressNeedsPort() throws Exception {
+        new WorkerLink("localhost", 1);
+    }
+}